@@ -31,11 +31,15 @@ class Glyph {
     @Sustain
     private final int glyphId;
     @Sustain
-    private long nativeOutline;
+    private volatile long nativeOutline;
     private int mLeftSideBearing;
     private int mTopSideBearing;
-    private Bitmap mBitmap;
-    private Path mPath;
+    private int mWidth;
+    private int mHeight;
+    private volatile boolean mBitmapLoaded;
+    private volatile Bitmap mBitmap;
+    private volatile GlyphAtlas.Slot mAtlasSlot;
+    private volatile Path mPath;
 
     public Glyph(int glyphId) {
         this.glyphId = glyphId;
@@ -54,17 +58,38 @@ class Glyph {
     }
 
     public int rightSideBearing() {
-        return mLeftSideBearing + (mBitmap != null ? mBitmap.getWidth() : 0);
+        return mLeftSideBearing + mWidth;
     }
 
     public int bottomSideBearing() {
-        return mTopSideBearing + (mBitmap != null ? mBitmap.getHeight() : 0);
+        return mTopSideBearing + mHeight;
+    }
+
+    public int width() {
+        return mWidth;
+    }
+
+    public int height() {
+        return mHeight;
     }
 
     public Bitmap bitmap() {
         return mBitmap;
     }
 
+    public boolean isBitmapLoaded() {
+        return mBitmapLoaded;
+    }
+
+    public GlyphAtlas.Slot atlasSlot() {
+        return mAtlasSlot;
+    }
+
+    public boolean isAtlasSlotStale() {
+        GlyphAtlas.Slot atlasSlot = mAtlasSlot;
+        return (atlasSlot != null && !atlasSlot.isValid());
+    }
+
     public Path path() {
         return mPath;
     }
@@ -74,14 +99,24 @@ class Glyph {
     }
 
     @Sustain
-    private void ownBitmap(Bitmap bitmap, int left, int top) {
+    void ownBitmap(Bitmap bitmap, int left, int top) {
         if (mBitmap != null && !mBitmap.isRecycled()) {
             mBitmap.recycle();
         }
 
-        mBitmap = bitmap;
         mLeftSideBearing = left;
         mTopSideBearing = top;
+        mWidth = (bitmap != null ? bitmap.getWidth() : 0);
+        mHeight = (bitmap != null ? bitmap.getHeight() : 0);
+        mBitmap = bitmap;
+        mBitmapLoaded = true;
+        mAtlasSlot = null;
+    }
+
+    void ownAtlasSlot(GlyphAtlas.Slot atlasSlot) {
+        // The bitmap is not recycled as a concurrent draw might still be using it.
+        mAtlasSlot = atlasSlot;
+        mBitmap = null;
     }
 
     @Sustain
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Shader;
+
+import java.util.ArrayList;
+
+class GlyphAtlas {
+
+    static final int PAGE_SIZE = 512;
+    private static final int PADDING = 1;
+
+    static class Page {
+
+        final int index;
+        final ArrayList<Shelf> shelves = new ArrayList<>();
+        volatile int generation;
+        volatile long lastUse;
+        Bitmap bitmap;
+        BitmapShader shader;
+        Canvas canvas;
+        boolean recorded;
+        int pinCount;
+        int shelfTop;
+
+        Page(int index) {
+            this.index = index;
+            this.generation = nextGeneration();
+            allocate();
+        }
+
+        private void allocate() {
+            bitmap = Bitmap.createBitmap(PAGE_SIZE, PAGE_SIZE, Bitmap.Config.ALPHA_8);
+            shader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            canvas = new Canvas(bitmap);
+            recorded = false;
+        }
+
+        /**
+         * Empties the page if it is not pinned. Must be called while holding the lock of the page.
+         */
+        boolean tryReset() {
+            if (pinCount > 0) {
+                return false;
+            }
+
+            if (recorded) {
+                // A hardware accelerated canvas only records a reference to the bitmap, which may
+                // be replayed at any time later on, so the bitmap is retired rather than wiped.
+                allocate();
+            } else {
+                bitmap.eraseColor(Color.TRANSPARENT);
+            }
+            shelves.clear();
+            shelfTop = 0;
+            generation = nextGeneration();
+
+            return true;
+        }
+    }
+
+    static class Slot {
+
+        final Page page;
+        final int generation;
+        final int left;
+        final int top;
+
+        Slot(Page page, int left, int top) {
+            this.page = page;
+            this.generation = page.generation;
+            this.left = left;
+            this.top = top;
+        }
+
+        boolean isValid() {
+            return (page.generation == generation);
+        }
+    }
+
+    private static class Shelf {
+
+        final int top;
+        final int height;
+        int nextLeft;
+
+        Shelf(int top, int height) {
+            this.top = top;
+            this.height = height;
+        }
+    }
+
+    private static long sUseCounter;
+    private static int sGeneration;
+
+    /**
+     * Returns a generation greater than the one of any page so far. Generations are shared by all
+     * pages, so that a single value tells whether a page has been wiped since it was taken.
+     */
+    private static synchronized int nextGeneration() {
+        return ++sGeneration;
+    }
+
+    static synchronized int currentGeneration() {
+        return sGeneration;
+    }
+
+    private final ArrayList<Page> mPages = new ArrayList<>();
+    private final int mMaxPages;
+
+    GlyphAtlas(int maxPages) {
+        // Pages are identified by a bit of an integer mask.
+        mMaxPages = Math.max(1, Math.min(maxPages, Integer.SIZE));
+    }
+
+    /**
+     * Copies the mask of the glyph into one of the pages and drops the glyph's own bitmap. If
+     * all pages are full, the least recently used one is emptied, invalidating every glyph that
+     * was packed into it. Pinned pages are never emptied, and a page recorded by a hardware
+     * accelerated canvas gets a new bitmap instead of being wiped.
+     *
+     * @return <code>true</code> if the glyph was packed, <code>false</code> if its mask is too
+     *         large to fit in a page or no page could be freed for it.
+     */
+    synchronized boolean pack(Glyph glyph) {
+        Bitmap mask = glyph.bitmap();
+        if (mask == null) {
+            return false;
+        }
+
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int paddedWidth = width + PADDING;
+        int paddedHeight = height + PADDING;
+
+        if (paddedWidth > PAGE_SIZE || paddedHeight > PAGE_SIZE) {
+            return false;
+        }
+
+        for (Page page : mPages) {
+            if (place(page, glyph, mask, paddedWidth, paddedHeight)) {
+                return true;
+            }
+        }
+
+        Page page;
+        if (mPages.size() < mMaxPages) {
+            page = new Page(mPages.size());
+            mPages.add(page);
+        } else {
+            page = evictPage();
+            if (page == null) {
+                return false;
+            }
+        }
+
+        return place(page, glyph, mask, paddedWidth, paddedHeight);
+    }
+
+    private Page evictPage() {
+        ArrayList<Page> candidates = new ArrayList<>(mPages);
+
+        while (!candidates.isEmpty()) {
+            Page page = candidates.get(0);
+            for (Page candidate : candidates) {
+                if (candidate.lastUse < page.lastUse) {
+                    page = candidate;
+                }
+            }
+
+            synchronized (page) {
+                if (page.tryReset()) {
+                    return page;
+                }
+            }
+
+            candidates.remove(page);
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks that none of the pages, given as a mask of their indexes, has been wiped after the
+     * given generation.
+     */
+    synchronized boolean arePagesIntact(int pageMask, int generation) {
+        for (Page page : mPages) {
+            if ((pageMask & (1 << page.index)) != 0 && page.generation > generation) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the area of a page taken by a slot holding a mask of the given size.
+     */
+    static int slotArea(int width, int height) {
+        return (width + PADDING) * (height + PADDING);
+    }
+
+    /**
+     * Marks the page as recently used so that it is not evicted in favour of idle ones. Racy
+     * updates of the counter are harmless as it only steers the choice of the page to evict.
+     */
+    static void touch(Page page) {
+        page.lastUse = ++sUseCounter;
+    }
+
+    /**
+     * Marks the page as used by a draw on the given canvas. Must be called while holding the lock
+     * of the page.
+     */
+    static void touch(Page page, Canvas canvas) {
+        touch(page);
+        if (canvas.isHardwareAccelerated()) {
+            page.recorded = true;
+        }
+    }
+
+    /**
+     * Prevents the page from being wiped until it is unpinned, e.g. while draws from it are
+     * pending. A slot of the page must be checked for validity after pinning it.
+     */
+    static void pin(Page page) {
+        synchronized (page) {
+            page.pinCount++;
+        }
+    }
+
+    static void unpin(Page page) {
+        synchronized (page) {
+            page.pinCount--;
+        }
+    }
+
+    private boolean place(Page page, Glyph glyph, Bitmap mask, int paddedWidth, int paddedHeight) {
+        Shelf bestShelf = null;
+
+        // Find the tightest shelf that can hold the mask without wasting more than half of its height.
+        for (Shelf shelf : page.shelves) {
+            if (shelf.height >= paddedHeight && shelf.height <= paddedHeight * 2
+                    && shelf.nextLeft + paddedWidth <= PAGE_SIZE) {
+                if (bestShelf == null || shelf.height < bestShelf.height) {
+                    bestShelf = shelf;
+                }
+            }
+        }
+
+        if (bestShelf == null) {
+            if (page.shelfTop + paddedHeight > PAGE_SIZE) {
+                return false;
+            }
+
+            bestShelf = new Shelf(page.shelfTop, paddedHeight);
+            page.shelves.add(bestShelf);
+            page.shelfTop += paddedHeight;
+        }
+
+        int left = bestShelf.nextLeft;
+        int top = bestShelf.top;
+        bestShelf.nextLeft += paddedWidth;
+
+        // Serialize writing into the page with the draws reading from it.
+        synchronized (page) {
+            page.canvas.drawBitmap(mask, left, top, null);
+        }
+        touch(page);
+
+        glyph.ownAtlasSlot(new Slot(page, left, top));
+
+        return true;
+    }
+}
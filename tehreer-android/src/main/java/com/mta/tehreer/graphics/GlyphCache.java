@@ -19,37 +19,27 @@ package com.mta.tehreer.graphics;
 import android.graphics.Bitmap;
 import android.graphics.Path;
 
+import com.mta.tehreer.collections.IntList;
 import com.mta.tehreer.internal.util.LruCache;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 class GlyphCache extends LruCache {
 
-    private static class Segment extends LruCache.Segment<Integer, Glyph> {
-
-        //
-        // HashMap:
-        //  - 1 pointer for map entry
-        //  - 3 pointers for key, value and next
-        //  - 1 integer for hash code
-        //
-        // LruCache.Node:
-        //  - 5 pointers for segment, key, value, previous and next
-        //
-        // Glyph:
-        //  - 3 pointers for outline, bitmap and path
-        //  - 3 integers for glyph id, glyph left and glyph top
-        //
-        // Total:
-        //  - 12 pointers
-        //  - 4 integers
-        //
-        // Size: (12 * 4) + (4 * 4) = 64
-        //
-        private static final int ESTIMATED_OVERHEAD = 64;
+    static class Segment extends LruCache.IntSegment<Glyph> {
 
         public final GlyphRasterizer rasterizer;
+        public final Set<Integer> pendingIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        public final CopyOnWriteArrayList<StrokeSegment> strokeSegments = new CopyOnWriteArrayList<>();
+        public boolean disposed;
 
         public Segment(LruCache cache, GlyphRasterizer rasterizer) {
             super(cache);
@@ -57,16 +47,84 @@ class GlyphCache extends LruCache {
         }
 
         @Override
-        protected int sizeOf(Integer key, Glyph value) {
-            Bitmap maskBitmap = value.bitmap();
-            int innerSize = 0;
+        protected int sizeOf(int key, Glyph value) {
+            return sizeOfGlyph(value);
+        }
+    }
 
-            if (maskBitmap != null) {
-                innerSize = maskBitmap.getWidth() * maskBitmap.getHeight();
-            }
+    private static class StrokeSegment extends LruCache.IntSegment<Glyph> {
+
+        public final int lineRadius;
+        public final int lineCap;
+        public final int lineJoin;
+        public final int miterLimit;
+
+        public StrokeSegment(LruCache cache, int lineRadius, int lineCap, int lineJoin, int miterLimit) {
+            super(cache);
+            this.lineRadius = lineRadius;
+            this.lineCap = lineCap;
+            this.lineJoin = lineJoin;
+            this.miterLimit = miterLimit;
+        }
+
+        public boolean matches(int lineRadius, int lineCap, int lineJoin, int miterLimit) {
+            return this.lineRadius == lineRadius && this.lineCap == lineCap
+                    && this.lineJoin == lineJoin && this.miterLimit == miterLimit;
+        }
+
+        @Override
+        protected int sizeOf(int key, Glyph value) {
+            return sizeOfGlyph(value);
+        }
+    }
 
-            return innerSize + ESTIMATED_OVERHEAD;
+    //
+    // LruCache.IntSegment:
+    //  - 1 pointer for node slot
+    //  - 1 integer for key slot
+    //
+    // LruCache.Node:
+    //  - 4 pointers for segment, value, previous and next
+    //  - 2 integers for key and size
+    //
+    // Glyph:
+    //  - 3 pointers for outline, bitmap and path
+    //  - 3 integers for glyph id, glyph left and glyph top
+    //
+    // Total:
+    //  - 8 pointers
+    //  - 6 integers
+    //
+    // Size: (8 * 4) + (6 * 4) = 56
+    //
+    private static final int ESTIMATED_OVERHEAD = 56;
+
+    private static int sizeOfGlyph(Glyph glyph) {
+        Bitmap maskBitmap = glyph.bitmap();
+        int innerSize = 0;
+
+        if (maskBitmap != null) {
+            innerSize = maskBitmap.getWidth() * maskBitmap.getHeight();
+        } else if (glyph.atlasSlot() != null) {
+            // A packed glyph occupies its slot of the atlas instead of an own bitmap.
+            innerSize = GlyphAtlas.slotArea(glyph.width(), glyph.height());
         }
+
+        return innerSize + ESTIMATED_OVERHEAD;
+    }
+
+    private static class PrefetchExecutor {
+
+        private static final Executor INSTANCE = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GlyphPrefetch");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+
+                return thread;
+            }
+        });
     }
 
     private static class Holder {
@@ -83,35 +141,87 @@ class GlyphCache extends LruCache {
         return Holder.INSTANCE;
     }
 
-    private HashMap<GlyphStrike, Segment> segments = new HashMap<>();
+    private static final int ATLAS_MAX_PAGES = 8;
+    private static final int MAX_STROKE_SEGMENTS = 4;
+
+    private final ConcurrentHashMap<GlyphStrike, Segment> segments = new ConcurrentHashMap<>();
+    private volatile GlyphAtlas atlas;
+    private volatile boolean privateFaces;
 
     public GlyphCache(int capacity) {
         super(capacity);
     }
 
     @Override
-    public void clear() {
+    public synchronized void clear() {
         super.clear();
 
-        // Dispose all glyph rasterizers.
+        // Dispose all glyph rasterizers, waiting for any prefetch that is still using them.
         for (Map.Entry<GlyphStrike, Segment> entry : segments.entrySet()) {
-            entry.getValue().rasterizer.dispose();
+            Segment segment = entry.getValue();
+            synchronized (segment) {
+                segment.disposed = true;
+                segment.rasterizer.dispose();
+            }
         }
         segments.clear();
+
+        if (atlas != null) {
+            atlas = new GlyphAtlas(ATLAS_MAX_PAGES);
+        }
     }
 
-    private Segment unsafeGetSegment(GlyphStrike strike) {
+    public boolean isAtlasEnabled() {
+        return (atlas != null);
+    }
+
+    public synchronized void setAtlasEnabled(boolean enabled) {
+        if (enabled != isAtlasEnabled()) {
+            // Glyphs that are already packed keep drawing from their pages.
+            atlas = (enabled ? new GlyphAtlas(ATLAS_MAX_PAGES) : null);
+        }
+    }
+
+    /**
+     * Checks that the atlas pages drawn from since the given generation still hold the same
+     * glyphs. Pages of an atlas that was replaced are never wiped anymore, while the pages of the
+     * new atlas are newer than any earlier generation.
+     */
+    public boolean areAtlasPagesIntact(int pageMask, int generation) {
+        GlyphAtlas atlas = this.atlas;
+        return (pageMask == 0 || atlas == null || atlas.arePagesIntact(pageMask, generation));
+    }
+
+    public boolean isPrivateFacesEnabled() {
+        return privateFaces;
+    }
+
+    public void setPrivateFacesEnabled(boolean enabled) {
+        // Existing rasterizers keep their faces until the cache is cleared.
+        privateFaces = enabled;
+    }
+
+    /**
+     * Returns the segment holding the glyphs of the given strike, so that a run of glyphs can be
+     * looked up without resolving the strike for each of them.
+     */
+    Segment getSegment(GlyphStrike strike) {
         Segment segment = segments.get(strike);
         if (segment == null) {
-            GlyphRasterizer rasterizer = new GlyphRasterizer(strike);
-            segment = new Segment(this, rasterizer);
-            segments.put(strike.clone(), segment);
+            synchronized (this) {
+                segment = segments.get(strike);
+                if (segment == null) {
+                    GlyphRasterizer rasterizer = new GlyphRasterizer(strike, privateFaces);
+                    segment = new Segment(this, rasterizer);
+                    segments.put(strike.clone(), segment);
+                }
+            }
         }
 
         return segment;
     }
 
-    public Glyph unsafeGetGlyph(Segment segment, int glyphId) {
+    private Glyph getGlyph(Segment segment, int glyphId) {
         Glyph glyph = segment.get(glyphId);
         if (glyph == null) {
             glyph = new Glyph(glyphId);
@@ -120,67 +230,243 @@ class GlyphCache extends LruCache {
         return glyph;
     }
 
-    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
     public Glyph getMaskGlyph(GlyphStrike strike, int glyphId) {
-        final Segment segment;
-        final Glyph glyph;
+        return getMaskGlyph(getSegment(strike), glyphId);
+    }
 
-        synchronized (this) {
-            segment = unsafeGetSegment(strike);
-            glyph = unsafeGetGlyph(segment, glyphId);
-        }
+    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+    Glyph getMaskGlyph(Segment segment, int glyphId) {
+        Glyph glyph = getGlyph(segment, glyphId);
 
-        synchronized (glyph) {
-            if (glyph.bitmap() == null) {
-                segment.remove(glyphId);
+        if (!glyph.isBitmapLoaded() || glyph.isAtlasSlotStale()) {
+            synchronized (glyph) {
+                if (!glyph.isBitmapLoaded() || glyph.isAtlasSlotStale()) {
+                    segment.remove(glyphId);
 
-                segment.rasterizer.loadBitmap(glyph);
-                segment.put(glyphId, glyph);
+                    segment.rasterizer.loadBitmap(glyph);
+
+                    GlyphAtlas atlas = this.atlas;
+                    if (atlas != null) {
+                        atlas.pack(glyph);
+                    }
+
+                    segment.put(glyphId, glyph);
+                }
             }
         }
 
         return glyph;
     }
 
-    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+    /**
+     * Returns the mask of the glyph if it is cached and ready to be drawn, or <code>null</code>
+     * without loading it otherwise.
+     */
+    Glyph findMaskGlyph(Segment segment, int glyphId) {
+        Glyph glyph = segment.get(glyphId);
+        if (glyph != null && glyph.isBitmapLoaded() && !glyph.isAtlasSlotStale()) {
+            return glyph;
+        }
+
+        return null;
+    }
+
+    /**
+     * Rasterizes all the glyphs of the list that are not yet cached, or whose atlas slot went
+     * stale, with a single native call, so that a subsequent lookup of each of them is a hit.
+     */
+    void loadMaskGlyphs(Segment segment, IntList glyphIds) {
+        int[] missingIds = collectMissingIds(segment, glyphIds);
+
+        if (missingIds != null) {
+            loadMaskGlyphs(segment, missingIds);
+        }
+    }
+
+    /**
+     * Schedules rasterization of all the glyphs of the list that are not yet cached on a
+     * background thread.
+     */
+    public void prefetchMaskGlyphs(GlyphStrike strike, IntList glyphIds) {
+        final Segment segment = getSegment(strike);
+        final int[] missingIds = collectMissingIds(segment, glyphIds);
+
+        if (missingIds != null) {
+            PrefetchExecutor.INSTANCE.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (segment) {
+                        if (!segment.disposed) {
+                            loadMaskGlyphs(segment, missingIds);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean needsLoading(Segment segment, int glyphId) {
+        Glyph glyph = segment.peek(glyphId);
+        return (glyph == null || glyph.isAtlasSlotStale());
+    }
+
+    private static int[] collectMissingIds(Segment segment, IntList glyphIds) {
+        int size = glyphIds.size();
+        int[] missingIds = null;
+        int missingCount = 0;
+
+        for (int i = 0; i < size; i++) {
+            int glyphId = glyphIds.get(i);
+            if (needsLoading(segment, glyphId)) {
+                if (missingIds == null) {
+                    missingIds = new int[size - i];
+                }
+                missingIds[missingCount++] = glyphId;
+            }
+        }
+
+        if (missingCount == 0) {
+            return null;
+        }
+
+        // Remove duplicate ids so that each glyph is rasterized once.
+        Arrays.sort(missingIds, 0, missingCount);
+        int uniqueCount = 0;
+        for (int i = 0; i < missingCount; i++) {
+            if (uniqueCount == 0 || missingIds[uniqueCount - 1] != missingIds[i]) {
+                missingIds[uniqueCount++] = missingIds[i];
+            }
+        }
+
+        return Arrays.copyOf(missingIds, uniqueCount);
+    }
+
+    private void loadMaskGlyphs(Segment segment, int[] glyphIds) {
+        Glyph[] glyphs = new Glyph[glyphIds.length];
+        int count = 0;
+
+        // Skip the glyphs that got cached meanwhile or are being rasterized by another thread.
+        for (int glyphId : glyphIds) {
+            if (needsLoading(segment, glyphId) && segment.pendingIds.add(glyphId)) {
+                glyphs[count++] = new Glyph(glyphId);
+            }
+        }
+
+        if (count == 0) {
+            return;
+        }
+
+        try {
+            // The glyphs are fresh, so no other thread can access them until they are put in the segment.
+            segment.rasterizer.loadBitmaps(glyphs, count);
+
+            GlyphAtlas atlas = this.atlas;
+            for (int i = 0; i < count; i++) {
+                Glyph glyph = glyphs[i];
+                if (atlas != null) {
+                    atlas.pack(glyph);
+                }
+
+                segment.put(glyph.glyphId(), glyph);
+            }
+        } finally {
+            for (int i = 0; i < count; i++) {
+                segment.pendingIds.remove(glyphs[i].glyphId());
+            }
+        }
+    }
+
+    private StrokeSegment getStrokeSegment(Segment segment, int lineRadius,
+                                           int lineCap, int lineJoin, int miterLimit) {
+        CopyOnWriteArrayList<StrokeSegment> strokeSegments = segment.strokeSegments;
+        int count = strokeSegments.size();
+
+        // A strike is rarely stroked in more than a couple of ways, so a linear search is enough.
+        for (int i = 0; i < count; i++) {
+            StrokeSegment strokeSegment = strokeSegments.get(i);
+            if (strokeSegment.matches(lineRadius, lineCap, lineJoin, miterLimit)) {
+                return strokeSegment;
+            }
+        }
+
+        synchronized (strokeSegments) {
+            for (StrokeSegment strokeSegment : strokeSegments) {
+                if (strokeSegment.matches(lineRadius, lineCap, lineJoin, miterLimit)) {
+                    return strokeSegment;
+                }
+            }
+
+            // Animated stroke widths would otherwise keep adding segments, so the oldest one is
+            // dropped along with its glyphs.
+            if (strokeSegments.size() >= MAX_STROKE_SEGMENTS) {
+                strokeSegments.remove(0).clear();
+            }
+
+            StrokeSegment strokeSegment = new StrokeSegment(this, lineRadius, lineCap, lineJoin, miterLimit);
+            strokeSegments.add(strokeSegment);
+
+            return strokeSegment;
+        }
+    }
+
     public Glyph getMaskGlyph(GlyphStrike strike, int glyphId, int lineRadius,
                               int lineCap, int lineJoin, int miterLimit) {
-        final Segment segment;
-        final Glyph glyph;
+        return getMaskGlyph(getSegment(strike), glyphId, lineRadius, lineCap, lineJoin, miterLimit);
+    }
+
+    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+    Glyph getMaskGlyph(Segment segment, int glyphId, int lineRadius,
+                       int lineCap, int lineJoin, int miterLimit) {
+        StrokeSegment strokeSegment = getStrokeSegment(segment, lineRadius, lineCap, lineJoin, miterLimit);
 
-        synchronized (this) {
-            segment = unsafeGetSegment(strike);
-            glyph = unsafeGetGlyph(segment, glyphId);
+        Glyph strokeGlyph = strokeSegment.get(glyphId);
+        if (strokeGlyph != null && !strokeGlyph.isAtlasSlotStale()) {
+            return strokeGlyph;
         }
 
-        synchronized(glyph) {
-            if (!glyph.containsOutline()) {
-                segment.remove(glyphId);
+        Glyph glyph = getGlyph(segment, glyphId);
+
+        if (!glyph.containsOutline()) {
+            synchronized (glyph) {
+                if (!glyph.containsOutline()) {
+                    segment.remove(glyphId);
 
-                segment.rasterizer.loadOutline(glyph);
-                segment.put(glyphId, glyph);
+                    segment.rasterizer.loadOutline(glyph);
+                    segment.put(glyphId, glyph);
+                }
             }
         }
 
-        return segment.rasterizer.strokeGlyph(glyph, lineRadius, lineCap, lineJoin, miterLimit);
+        strokeGlyph = segment.rasterizer.strokeGlyph(glyph, lineRadius, lineCap, lineJoin, miterLimit);
+        if (strokeGlyph == null) {
+            // Cache an empty glyph so that a failing stroke is not attempted on every draw.
+            strokeGlyph = new Glyph(glyphId);
+            strokeGlyph.ownBitmap(null, 0, 0);
+        }
+
+        GlyphAtlas atlas = this.atlas;
+        if (atlas != null) {
+            atlas.pack(strokeGlyph);
+        }
+
+        strokeSegment.put(glyphId, strokeGlyph);
+
+        return strokeGlyph;
     }
 
     @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
     public Path getGlyphPath(GlyphStrike strike, int glyphId) {
-        final Segment segment;
-        final Glyph glyph;
-
-        synchronized (this) {
-            segment = unsafeGetSegment(strike);
-            glyph = unsafeGetGlyph(segment, glyphId);
-        }
+        Segment segment = getSegment(strike);
+        Glyph glyph = getGlyph(segment, glyphId);
 
-        synchronized (glyph) {
-            if (glyph.path() == null) {
-                segment.remove(glyphId);
+        if (glyph.path() == null) {
+            synchronized (glyph) {
+                if (glyph.path() == null) {
+                    segment.remove(glyphId);
 
-                segment.rasterizer.loadPath(glyph);
-                segment.put(glyphId, glyph);
+                    segment.rasterizer.loadPath(glyph);
+                    segment.put(glyphId, glyph);
+                }
             }
         }
 
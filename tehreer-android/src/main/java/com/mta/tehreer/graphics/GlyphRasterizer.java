@@ -16,9 +16,13 @@
 
 package com.mta.tehreer.graphics;
 
+import android.graphics.Bitmap;
+
 import com.mta.tehreer.Disposable;
 import com.mta.tehreer.internal.JniBridge;
 
+import java.nio.ByteBuffer;
+
 class GlyphRasterizer implements Disposable {
 
     static {
@@ -37,16 +41,50 @@ class GlyphRasterizer implements Disposable {
 
 	long nativeRasterizer;
 
-	GlyphRasterizer(GlyphStrike strike) {
+	GlyphRasterizer(GlyphStrike strike, boolean ownFace) {
 	    nativeRasterizer = nativeCreate(strike.typeface.nativeTypeface,
                                         strike.pixelWidth, strike.pixelHeight,
-                                        0x10000, -strike.skewX, 0, 0x10000);
+                                        0x10000, -strike.skewX, 0, 0x10000, ownFace);
 	}
 
 	void loadBitmap(Glyph glyph) {
 	    nativeLoadBitmap(nativeRasterizer, glyph);
 	}
 
+    /**
+     * Loads the bitmaps of multiple glyphs with a single native call. The glyphs must not be
+     * visible to any other thread while they are being loaded.
+     */
+    void loadBitmaps(Glyph[] glyphs, int count) {
+        int[] glyphIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            glyphIds[i] = glyphs[i].glyphId();
+        }
+
+        int[] metrics = new int[count * 4];
+        byte[] pixels = nativeLoadBitmaps(nativeRasterizer, glyphIds, count, metrics);
+        int offset = 0;
+
+        for (int i = 0; i < count; i++) {
+            int index = i * 4;
+            int left = metrics[index];
+            int top = metrics[index + 1];
+            int width = metrics[index + 2];
+            int height = metrics[index + 3];
+            Bitmap bitmap = null;
+
+            if (width > 0 && height > 0) {
+                int length = width * height;
+
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels, offset, length));
+                offset += length;
+            }
+
+            glyphs[i].ownBitmap(bitmap, left, top);
+        }
+    }
+
     void loadOutline(Glyph glyph) {
         nativeLoadOutline(nativeRasterizer, glyph);
     }
@@ -66,10 +104,12 @@ class GlyphRasterizer implements Disposable {
     }
 
 	private static native long nativeCreate(long nativeTypeface, int pixelWidth, int pixelHeight,
-                                            int transformXX, int transformXY, int transformYX, int transformYY);
+                                            int transformXX, int transformXY, int transformYX, int transformYY,
+                                            boolean ownFace);
     private static native void nativeDispose(long nativeRasterizer);
 
     private static native void nativeLoadBitmap(long nativeRasterizer, Glyph glyph);
+    private static native byte[] nativeLoadBitmaps(long nativeRasterizer, int[] glyphIds, int count, int[] metrics);
     private static native void nativeLoadOutline(long nativeRasterizer, Glyph glyph);
     private static native void nativeLoadPath(long nativeRasterizer, Glyph glyph);
 
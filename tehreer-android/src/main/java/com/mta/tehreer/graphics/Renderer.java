@@ -21,7 +21,9 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Build;
 import android.util.Log;
 
 import com.mta.tehreer.collections.FloatList;
@@ -37,6 +39,62 @@ public class Renderer {
 
     private static final String TAG = Renderer.class.getSimpleName();
 
+    // Hardware accelerated canvases support drawVertices since Android Q (API level 29).
+    private static final int VERTICES_SUPPORT_SDK = 29;
+    private static final int FLOATS_PER_QUAD = 12;
+
+    /**
+     * Returns whether glyph masks are packed into shared atlas pages. The default value is
+     * <code>false</code>.
+     *
+     * @return <code>true</code> if the glyph atlas is enabled, <code>false</code> otherwise.
+     */
+    public static boolean isGlyphAtlasEnabled() {
+        return GlyphCache.getInstance().isAtlasEnabled();
+    }
+
+    /**
+     * Enables or disables packing of glyph masks into shared atlas pages. With atlas enabled,
+     * glyphs are drawn with a single batched call per page instead of one bitmap per glyph, which
+     * lowers the number of bitmaps and draw calls on long pages of text. The default value is
+     * <code>false</code>.
+     * <p>
+     * This setting affects all renderers.
+     *
+     * @param enabled <code>true</code> to enable the glyph atlas, <code>false</code> to disable it.
+     */
+    public static void setGlyphAtlasEnabled(boolean enabled) {
+        GlyphCache.getInstance().setAtlasEnabled(enabled);
+    }
+
+    /**
+     * Returns whether glyphs of different strikes can be rasterized concurrently. The default
+     * value is <code>false</code>.
+     *
+     * @return <code>true</code> if concurrent rasterization is enabled, <code>false</code>
+     *         otherwise.
+     */
+    public static boolean isConcurrentRasterizationEnabled() {
+        return GlyphCache.getInstance().isPrivateFacesEnabled();
+    }
+
+    /**
+     * Enables or disables concurrent rasterization of glyphs. By default, all sizes of a typeface
+     * share a single FreeType face, so glyphs of a typeface are rasterized one at a time even if
+     * they are drawn from different threads. With concurrent rasterization enabled, each size
+     * opens a face of its own, letting threads rasterize different sizes in parallel at the cost
+     * of some additional memory per size.
+     * <p>
+     * Typefaces created from assets always share a single face. This setting only affects the
+     * sizes which are first drawn after it has been changed, and applies to all renderers.
+     *
+     * @param enabled <code>true</code> to enable concurrent rasterization, <code>false</code> to
+     *        disable it.
+     */
+    public static void setConcurrentRasterizationEnabled(boolean enabled) {
+        GlyphCache.getInstance().setPrivateFacesEnabled(enabled);
+    }
+
     private GlyphStrike mGlyphStrike;
     private int mGlyphLineRadius;
     private int mGlyphLineCap;
@@ -44,8 +102,18 @@ public class Renderer {
     private int mGlyphMiterLimit;
 
     private Paint mPaint;
+    private Rect mAtlasRect;
+    private RectF mGlyphRect;
+    private GlyphAtlas.Page mBatchPage;
+    private float[] mBatchVertices;
+    private float[] mBatchTexCoords;
+    private int mBatchLength;
     private boolean mShouldRender;
     private boolean mShadowLayerSynced;
+    private int mStyleGeneration;
+    private boolean mTrackingPages;
+    private int mTrackedPages;
+    private int mTrackingGeneration;
 
     private int mFillColor;
     private RenderingStyle mRenderingStyle;
@@ -71,6 +139,8 @@ public class Renderer {
     public Renderer() {
         mGlyphStrike = new GlyphStrike();
         mPaint = new Paint();
+        mAtlasRect = new Rect();
+        mGlyphRect = new RectF();
         mShadowRadius = 0.0f;
         mShadowDx = 0.0f;
         mShadowDy = 0.0f;
@@ -111,6 +181,55 @@ public class Renderer {
         }
     }
 
+    /**
+     * Returns a number that changes whenever a style of this renderer is set, which can be used to
+     * tell whether a drawing recorded with this renderer is still up to date. The typeface, type
+     * size and writing direction are not counted as styles, because drawing a glyph run sets them
+     * from the run itself.
+     *
+     * @return The current style generation of this renderer.
+     */
+    public int getStyleGeneration() {
+        return mStyleGeneration;
+    }
+
+    /**
+     * Starts keeping track of the glyph atlas pages this renderer draws from. It is meant for
+     * drawings that are recorded for later replay, e.g. into a picture, because a recorded draw
+     * keeps referring to a page which may later be reused for other glyphs.
+     *
+     * @see #stopTrackingAtlasPages()
+     */
+    public void startTrackingAtlasPages() {
+        mTrackingPages = true;
+        mTrackedPages = 0;
+        mTrackingGeneration = GlyphAtlas.currentGeneration();
+    }
+
+    /**
+     * Stops keeping track of the glyph atlas pages and returns a stamp of the pages drawn from
+     * since the tracking was started.
+     *
+     * @return The stamp of the tracked pages, to be checked with
+     *         {@link #isAtlasStampValid(long)}.
+     */
+    public long stopTrackingAtlasPages() {
+        mTrackingPages = false;
+        return ((long) mTrackedPages << 32) | (mTrackingGeneration & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Checks whether the glyph atlas pages of a stamp still hold the glyphs that were drawn from
+     * them, i.e. whether a recorded drawing of the stamp can still be replayed.
+     *
+     * @param stamp The stamp returned by {@link #stopTrackingAtlasPages()}.
+     * @return <code>true</code> if none of the pages has been reused, <code>false</code>
+     *         otherwise.
+     */
+    public static boolean isAtlasStampValid(long stamp) {
+        return GlyphCache.getInstance().areAtlasPagesIntact((int) (stamp >>> 32), (int) stamp);
+    }
+
     /**
      * Returns this renderer's fill color for glyphs. The default value is <code>Color.BLACK</code>.
      *
@@ -127,6 +246,7 @@ public class Renderer {
      */
     public void setFillColor(int fillColor) {
         mFillColor = fillColor;
+        mStyleGeneration++;
     }
 
     /**
@@ -153,6 +273,7 @@ public class Renderer {
         }
 
         mRenderingStyle = renderingStyle;
+        mStyleGeneration++;
     }
 
     /**
@@ -239,6 +360,7 @@ public class Renderer {
      */
     public void setSlantAngle(float slantAngle) {
         mSlantAngle = slantAngle;
+        mStyleGeneration++;
         updateTransform();
     }
 
@@ -264,6 +386,7 @@ public class Renderer {
         }
 
         mScaleX = scaleX;
+        mStyleGeneration++;
         updatePixelSizes();
     }
 
@@ -289,6 +412,7 @@ public class Renderer {
         }
 
         mScaleY = scaleY;
+        mStyleGeneration++;
         updatePixelSizes();
     }
 
@@ -309,6 +433,7 @@ public class Renderer {
      */
     public void setStrokeColor(int strokeColor) {
         mStrokeColor = strokeColor;
+        mStyleGeneration++;
     }
 
     /**
@@ -331,6 +456,7 @@ public class Renderer {
         }
 
         mStrokeWidth = strokeWidth;
+        mStyleGeneration++;
         mGlyphLineRadius = (int) ((strokeWidth * 64.0f / 2.0f) + 0.5f);
     }
 
@@ -358,6 +484,7 @@ public class Renderer {
         }
 
         mStrokeCap = strokeCap;
+        mStyleGeneration++;
         mGlyphLineCap = strokeCap.value;
     }
 
@@ -383,6 +510,7 @@ public class Renderer {
         }
 
         mStrokeJoin = strokeJoin;
+        mStyleGeneration++;
         mGlyphLineJoin = strokeJoin.value;
     }
 
@@ -410,6 +538,7 @@ public class Renderer {
         }
 
         mStrokeMiter = strokeMiter;
+        mStyleGeneration++;
         mGlyphMiterLimit = (int) ((strokeMiter * 0x10000) + 0.5f);
     }
 
@@ -436,6 +565,7 @@ public class Renderer {
         }
 
         mShadowRadius = shadowRadius;
+        mStyleGeneration++;
         mShadowLayerSynced = false;
     }
 
@@ -455,6 +585,7 @@ public class Renderer {
      */
     public void setShadowDx(float shadowDx) {
         mShadowDx = shadowDx;
+        mStyleGeneration++;
         mShadowLayerSynced = false;
     }
 
@@ -474,6 +605,7 @@ public class Renderer {
      */
     public void setShadowDy(float shadowDy) {
         mShadowDy = shadowDy;
+        mStyleGeneration++;
         mShadowLayerSynced = false;
     }
 
@@ -493,6 +625,7 @@ public class Renderer {
      */
     public void setShadowColor(int shadowColor) {
         mShadowColor = shadowColor;
+        mStyleGeneration++;
         mShadowLayerSynced = false;
     }
 
@@ -544,8 +677,9 @@ public class Renderer {
 
     private void getBoundingBox(int glyphId, RectF boundingBox) {
         Glyph glyph = GlyphCache.getInstance().getMaskGlyph(mGlyphStrike, glyphId);
-        boundingBox.set(glyph.leftSideBearing(), glyph.topSideBearing(),
-                        glyph.rightSideBearing(), glyph.bottomSideBearing());
+        // The top side bearing is measured upwards from the baseline.
+        boundingBox.set(glyph.leftSideBearing(), -glyph.topSideBearing(),
+                        glyph.rightSideBearing(), glyph.height() - glyph.topSideBearing());
     }
 
     /**
@@ -572,19 +706,23 @@ public class Renderer {
     public RectF computeBoundingBox(IntList glyphIds, PointList offsets, FloatList advances) {
         RectF glyphBBox = new RectF();
         RectF cumulativeBBox = new RectF();
+        boolean reverseMode = (mWritingDirection == WritingDirection.RIGHT_TO_LEFT);
         float penX = 0.0f;
 
         int size = glyphIds.size();
 
+        // Position the glyphs in the same way as they are drawn.
         for (int i = 0; i < size; i++) {
-            int glyphId = glyphIds.get(i);
-            float xOffset = offsets.getX(i) * mScaleX;
-            float yOffset = offsets.getY(i) * mScaleY;
-            float advance = advances.get(i) * mScaleX;
+            int pos = (!reverseMode ? i : (size - i) - 1);
+
+            int glyphId = glyphIds.get(pos);
+            float xOffset = offsets.getX(pos) * mScaleX;
+            float yOffset = offsets.getY(pos) * mScaleY;
+            float advance = advances.get(pos) * mScaleX;
 
             getBoundingBox(glyphId, glyphBBox);
-            glyphBBox.offset(penX + xOffset, yOffset);
-            cumulativeBBox.union(cumulativeBBox);
+            glyphBBox.offset(penX + xOffset, -yOffset);
+            cumulativeBBox.union(glyphBBox);
 
             penX += advance;
         }
@@ -596,32 +734,208 @@ public class Renderer {
                             IntList glyphIds, PointList offsets, FloatList advances,
                             boolean strokeMode) {
         GlyphCache cache = GlyphCache.getInstance();
+        GlyphCache.Segment segment = cache.getSegment(mGlyphStrike);
         boolean reverseMode = (mWritingDirection == WritingDirection.RIGHT_TO_LEFT);
+        boolean batchMode = (!canvas.isHardwareAccelerated() || Build.VERSION.SDK_INT >= VERTICES_SUPPORT_SDK);
+        boolean loadPending = !strokeMode;
         float penX = 0.0f;
 
         int size = glyphIds.size();
 
-        for (int i = 0; i < size; i++) {
-            int pos = (!reverseMode ? i : (size - i) - 1);
+        try {
+            for (int i = 0; i < size; i++) {
+                int pos = (!reverseMode ? i : (size - i) - 1);
+
+                int glyphId = glyphIds.get(pos);
+                Glyph maskGlyph = null;
+
+                if (loadPending) {
+                    maskGlyph = cache.findMaskGlyph(segment, glyphId);
+                    if (maskGlyph == null) {
+                        // Rasterize the remaining missing glyphs at once rather than crossing JNI
+                        // for each of them.
+                        IntList remainingIds = (!reverseMode
+                                                ? glyphIds.subList(pos, size)
+                                                : glyphIds.subList(0, pos + 1));
+                        cache.loadMaskGlyphs(segment, remainingIds);
+                        loadPending = false;
+                    }
+                }
+
+                float xOffset = offsets.getX(pos) * mScaleX;
+                float yOffset = offsets.getY(pos) * mScaleY;
+                float advance = advances.get(pos) * mScaleX;
+
+                drawGlyph(canvas, cache, segment, glyphId, maskGlyph,
+                          penX + xOffset, -yOffset, strokeMode, batchMode);
+
+                penX += advance;
+            }
+        } finally {
+            flushAtlasQuads(canvas);
+        }
+    }
 
-            int glyphId = glyphIds.get(pos);
-            float xOffset = offsets.getX(pos) * mScaleX;
-            float yOffset = offsets.getY(pos) * mScaleY;
-            float advance = advances.get(pos) * mScaleX;
+    private Glyph getMaskGlyph(GlyphCache cache, GlyphCache.Segment segment, int glyphId,
+                               boolean strokeMode) {
+        return (!strokeMode
+                ? cache.getMaskGlyph(segment, glyphId)
+                : cache.getMaskGlyph(segment, glyphId, mGlyphLineRadius,
+                                     mGlyphLineCap, mGlyphLineJoin, mGlyphMiterLimit));
+    }
 
-            Glyph maskGlyph = (!strokeMode
-                               ? cache.getMaskGlyph(mGlyphStrike, glyphId)
-                               : cache.getMaskGlyph(mGlyphStrike, glyphId, mGlyphLineRadius,
-                                                    mGlyphLineCap, mGlyphLineJoin, mGlyphMiterLimit));
-            Bitmap maskBitmap = maskGlyph.bitmap();
-            if (maskBitmap != null) {
-                int left = (int) (penX + xOffset + maskGlyph.leftSideBearing() + 0.5f);
-                int top = (int) (-yOffset - maskGlyph.topSideBearing() + 0.5f);
+    private void drawGlyph(Canvas canvas, GlyphCache cache, GlyphCache.Segment segment,
+                           int glyphId, Glyph maskGlyph, float x, float y,
+                           boolean strokeMode, boolean batchMode) {
+        while (true) {
+            if (maskGlyph == null) {
+                maskGlyph = getMaskGlyph(cache, segment, glyphId, strokeMode);
+            }
+            int left = (int) (x + maskGlyph.leftSideBearing() + 0.5f);
+            int top = (int) (y - maskGlyph.topSideBearing() + 0.5f);
+
+            GlyphAtlas.Slot atlasSlot = maskGlyph.atlasSlot();
+            if (atlasSlot == null) {
+                Bitmap maskBitmap = maskGlyph.bitmap();
+                if (maskBitmap != null) {
+                    canvas.drawBitmap(maskBitmap, left, top, mPaint);
+                }
+                return;
+            }
 
-                canvas.drawBitmap(maskBitmap, left, top, mPaint);
+            int width = maskGlyph.width();
+            int height = maskGlyph.height();
+
+            if (batchMode) {
+                // The page stays pinned until the batch is flushed, so a valid slot cannot be
+                // overwritten before its quad is drawn.
+                usePage(canvas, atlasSlot.page);
+
+                if (atlasSlot.isValid()) {
+                    addAtlasQuad(atlasSlot, left, top, width, height);
+                    return;
+                }
+            } else {
+                GlyphAtlas.Page page = atlasSlot.page;
+
+                synchronized (page) {
+                    if (atlasSlot.isValid()) {
+                        mAtlasRect.set(atlasSlot.left, atlasSlot.top,
+                                       atlasSlot.left + width, atlasSlot.top + height);
+                        mGlyphRect.set(left, top, left + width, top + height);
+
+                        GlyphAtlas.touch(page, canvas);
+                        trackPage(page);
+                        canvas.drawBitmap(page.bitmap, mAtlasRect, mGlyphRect, mPaint);
+                        return;
+                    }
+                }
             }
 
-            penX += advance;
+            // The page was wiped by another thread after the lookup, so load the glyph again.
+            maskGlyph = null;
+        }
+    }
+
+    private void trackPage(GlyphAtlas.Page page) {
+        if (mTrackingPages) {
+            mTrackedPages |= 1 << page.index;
+        }
+    }
+
+    private void usePage(Canvas canvas, GlyphAtlas.Page page) {
+        if (mBatchPage != page) {
+            flushAtlasQuads(canvas);
+
+            GlyphAtlas.pin(page);
+            mBatchPage = page;
+        }
+    }
+
+    private void addAtlasQuad(GlyphAtlas.Slot atlasSlot, int left, int top, int width, int height) {
+        if (mBatchVertices == null || mBatchLength == mBatchVertices.length) {
+            int capacity = (mBatchVertices == null ? FLOATS_PER_QUAD * 64 : mBatchLength * 2);
+            float[] vertices = new float[capacity];
+            float[] texCoords = new float[capacity];
+
+            if (mBatchVertices != null) {
+                System.arraycopy(mBatchVertices, 0, vertices, 0, mBatchLength);
+                System.arraycopy(mBatchTexCoords, 0, texCoords, 0, mBatchLength);
+            }
+
+            mBatchVertices = vertices;
+            mBatchTexCoords = texCoords;
+        }
+
+        int right = left + width;
+        int bottom = top + height;
+        int atlasLeft = atlasSlot.left;
+        int atlasTop = atlasSlot.top;
+        int atlasRight = atlasLeft + width;
+        int atlasBottom = atlasTop + height;
+
+        mBatchLength = putQuad(mBatchVertices, mBatchLength, left, top, right, bottom);
+        putQuad(mBatchTexCoords, mBatchLength - FLOATS_PER_QUAD, atlasLeft, atlasTop, atlasRight, atlasBottom);
+    }
+
+    private static int putQuad(float[] array, int index, float left, float top, float right, float bottom) {
+        // First triangle.
+        array[index++] = left;
+        array[index++] = top;
+        array[index++] = right;
+        array[index++] = top;
+        array[index++] = left;
+        array[index++] = bottom;
+        // Second triangle.
+        array[index++] = right;
+        array[index++] = top;
+        array[index++] = right;
+        array[index++] = bottom;
+        array[index++] = left;
+        array[index++] = bottom;
+
+        return index;
+    }
+
+    private void flushAtlasQuads(Canvas canvas) {
+        GlyphAtlas.Page page = mBatchPage;
+        if (page == null) {
+            return;
+        }
+
+        try {
+            if (mBatchLength > 0) {
+                synchronized (page) {
+                    GlyphAtlas.touch(page, canvas);
+                    trackPage(page);
+
+                    mPaint.setShader(page.shader);
+                    canvas.drawVertices(Canvas.VertexMode.TRIANGLES, mBatchLength,
+                                        mBatchVertices, 0, mBatchTexCoords, 0, null, 0, null, 0, 0, mPaint);
+                    mPaint.setShader(null);
+                }
+            }
+        } finally {
+            GlyphAtlas.unpin(page);
+
+            mBatchPage = null;
+            mBatchLength = 0;
+        }
+    }
+
+    /**
+     * Rasterizes specified glyphs on a background thread, so that drawing them later with the
+     * current typeface, type size, slant angle and scale of this renderer does not have to wait
+     * for them. Glyphs that are already cached or being prefetched are skipped.
+     * <p>
+     * Only the glyph masks used for filling are prefetched. Stroked masks are generated while
+     * drawing and cached for a few recent stroke styles, but are not prefetched.
+     *
+     * @param glyphIds The list containing the glyph IDs.
+     */
+    public void prefetchGlyphs(IntList glyphIds) {
+        if (mShouldRender && mTypeface != null) {
+            GlyphCache.getInstance().prefetchMaskGlyphs(mGlyphStrike, glyphIds);
         }
     }
 
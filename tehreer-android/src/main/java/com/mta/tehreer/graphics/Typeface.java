@@ -27,6 +27,7 @@ import com.mta.tehreer.sfnt.SfntTag;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * The <code>Typeface</code> class specifies the typeface and intrinsic style of a font. This is
@@ -55,12 +56,14 @@ public class Typeface {
     long nativeTypeface;
     private final Finalizable finalizable = new Finalizable();
     private TypefaceDescription description;
+    private ByteBuffer buffer;  // Keeps the font data alive while the native typeface uses it.
     Object tag;
 
     /**
      * Constructs a typeface from the specified asset. The data of the asset is not copied into the
-     * memory. Rather, it is directly read from the stream when needed. So the performance of
-     * resulting typeface might be slower and should be used with caution.
+     * memory. If the asset is stored uncompressed in the apk, it is mapped into the memory,
+     * otherwise it is read from the stream when needed. So the performance of the typeface created
+     * from a compressed asset might be slower and should be used with caution.
      *
      * @param assetManager The application's asset manager.
      * @param filePath The path of the font file in the assets directory.
@@ -85,8 +88,8 @@ public class Typeface {
     }
 
     /**
-     * Constructs a typeface from the specified file. The data for the font is directly read from
-     * the file when needed.
+     * Constructs a typeface from the specified file. The file is mapped into the memory, so its
+     * data is neither copied nor read before it is needed.
      *
      * @param file The font file.
      *
@@ -128,6 +131,34 @@ public class Typeface {
         init(nativeTypeface);
     }
 
+    /**
+     * Constructs a typeface from the remaining bytes of a direct byte buffer. The data of the
+     * buffer is used in place without copying it, so the buffer is kept referenced by the typeface
+     * and its contents must not be modified afterwards.
+     *
+     * @param buffer The direct byte buffer that contains the data of the font.
+     *
+     * @throws NullPointerException if <code>buffer</code> is null.
+     * @throws IllegalArgumentException if <code>buffer</code> is not direct.
+     * @throws RuntimeException if an error occurred while initialization.
+     */
+    public Typeface(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new NullPointerException("Buffer is null");
+        }
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer is not direct");
+        }
+
+        long nativeTypeface = nativeCreateWithBuffer(buffer, buffer.position(), buffer.remaining());
+        if (nativeTypeface == 0) {
+            throw new RuntimeException("Could not create typeface from specified buffer");
+        }
+
+        this.buffer = buffer;
+        init(nativeTypeface);
+    }
+
 	private void init(long nativeTypeface) {
 	    this.nativeTypeface = nativeTypeface;
         this.description = TypefaceDescription.deduce(this);
@@ -345,6 +376,7 @@ public class Typeface {
     private static native long nativeCreateWithAsset(AssetManager assetManager, String path);
     private static native long nativeCreateWithFile(String path);
     private static native long nativeCreateFromStream(InputStream stream);
+    private static native long nativeCreateWithBuffer(ByteBuffer buffer, int offset, int length);
 	private static native void nativeDispose(long nativeTypeface);
 
     private static native byte[] nativeGetTableData(long nativeTypeface, int tableTag);
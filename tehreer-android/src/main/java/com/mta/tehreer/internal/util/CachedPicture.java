@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.internal.util;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.RectF;
+import android.os.Build;
+
+import com.mta.tehreer.graphics.Renderer;
+import com.mta.tehreer.graphics.RenderingStyle;
+import com.mta.tehreer.graphics.StrokeJoin;
+
+/**
+ * Keeps the drawing of some text recorded into a picture along with the renderer, its style
+ * generation and the stamp of the atlas pages drawn from at the time of recording, so that it can
+ * be replayed as long as they stay the same. As a picture is clipped to its bounds when replayed,
+ * they must cover everything drawn, which may extend to the left of or above the origin.
+ */
+public class CachedPicture {
+
+    // A picture records glyphs in batches of vertices, which hardware accelerated canvases can
+    // replay since Android Q (API level 29).
+    private static final int HARDWARE_REPLAY_SDK = 29;
+
+    private Picture picture;
+    private Renderer renderer;
+    private int styleGeneration;
+    private long atlasStamp;
+    private int left;
+    private int top;
+
+    public static boolean canReplay(Canvas canvas) {
+        return !canvas.isHardwareAccelerated() || Build.VERSION.SDK_INT >= HARDWARE_REPLAY_SDK;
+    }
+
+    /**
+     * Grows the bounds of the ink of some text by the extent of the stroke and the shadow that the
+     * renderer draws around it.
+     */
+    public static void addEffectExtent(Renderer renderer, RectF bounds) {
+        if (renderer.getRenderingStyle() != RenderingStyle.FILL) {
+            float strokeExtent = renderer.getStrokeWidth() / 2.0f;
+            if (renderer.getStrokeJoin() == StrokeJoin.MITER) {
+                strokeExtent *= renderer.getStrokeMiter();
+            }
+
+            bounds.inset(-strokeExtent, -strokeExtent);
+        }
+
+        float shadowRadius = renderer.getShadowRadius();
+        if (shadowRadius > 0.0f) {
+            RectF shadowBounds = new RectF(bounds);
+            shadowBounds.offset(renderer.getShadowDx(), renderer.getShadowDy());
+            shadowBounds.inset(-shadowRadius, -shadowRadius);
+
+            bounds.union(shadowBounds);
+        }
+    }
+
+    public boolean isValid(Renderer renderer) {
+        return picture != null
+                && this.renderer == renderer
+                && styleGeneration == renderer.getStyleGeneration()
+                && Renderer.isAtlasStampValid(atlasStamp);
+    }
+
+    public Canvas beginRecording(Renderer renderer, RectF bounds) {
+        this.picture = new Picture();
+        this.renderer = renderer;
+        this.styleGeneration = renderer.getStyleGeneration();
+        this.left = (int) Math.floor(bounds.left);
+        this.top = (int) Math.floor(bounds.top);
+
+        // The picture samples the atlas pages as they are when it is replayed.
+        renderer.startTrackingAtlasPages();
+
+        int width = (int) Math.ceil(bounds.right) - left;
+        int height = (int) Math.ceil(bounds.bottom) - top;
+
+        Canvas canvas = picture.beginRecording(Math.max(width, 1), Math.max(height, 1));
+        canvas.translate(-left, -top);
+
+        return canvas;
+    }
+
+    public void endRecording() {
+        picture.endRecording();
+        atlasStamp = renderer.stopTrackingAtlasPages();
+    }
+
+    public void draw(Canvas canvas) {
+        canvas.translate(left, top);
+        canvas.drawPicture(picture);
+        canvas.translate(-left, -top);
+    }
+
+    public void clear() {
+        picture = null;
+        renderer = null;
+    }
+}
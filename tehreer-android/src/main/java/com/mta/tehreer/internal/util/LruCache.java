@@ -16,24 +16,43 @@
 
 package com.mta.tehreer.internal.util;
 
-import java.util.HashMap;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size bounded cache whose entries are partitioned into segments and evicted in least recently
+ * used order across all segments.
+ * <p>
+ * Lookups never take a lock. Instead, each hit is recorded into a lossy read buffer, striped by
+ * thread, and the recency list is reordered in batches whenever a buffer fills up. Adding an entry
+ * only drains the buffer of the adding thread. This keeps the eviction order approximately LRU
+ * while letting rendering threads hit the cache in parallel.
+ */
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public abstract class LruCache {
 
-    private static class Node<K, V> {
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private static abstract class Node<V> {
 
-        public final Segment<K, V> segment;
-        public final K key;
-        public V value;
-        public Node<K, V> previous;
-        public Node<K, V> next;
+        public final V value;
+        public final int size;
+        public Node<V> previous;
+        public Node<V> next;
 
-        public Node(Segment<K, V> segment, K key, V value) {
-            this.segment = segment;
-            this.key = key;
+        public Node(V value, int size) {
             this.value = value;
+            this.size = size;
         }
+
+        public boolean isLinked() {
+            return (next != null);
+        }
+
+        public abstract void unsafeEvict();
     }
 
     private static class List {
@@ -41,7 +60,11 @@ public abstract class LruCache {
         Node header;
 
         public List() {
-            header = new Node(null, null, null);
+            header = new Node(null, 0) {
+                @Override
+                public void unsafeEvict() {
+                }
+            };
             header.previous = header.next = header;
         }
 
@@ -68,14 +91,44 @@ public abstract class LruCache {
         }
 
         public void clear() {
+            Node node = header.next;
+            while (node != header) {
+                Node next = node.next;
+                node.next = node.previous = null;
+                node = next;
+            }
+
             header.previous = header.next = header;
         }
     }
 
+    private static class ReadBuffer {
+
+        final AtomicReferenceArray<Node> nodes = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        final AtomicInteger counter = new AtomicInteger();
+    }
+
     protected static class Segment<K, V> {
 
+        private static class KeyNode<K, V> extends Node<V> {
+
+            final Segment<K, V> segment;
+            final K key;
+
+            KeyNode(Segment<K, V> segment, K key, V value, int size) {
+                super(value, size);
+                this.segment = segment;
+                this.key = key;
+            }
+
+            @Override
+            public void unsafeEvict() {
+                segment.map.remove(key, this);
+            }
+        }
+
         protected final LruCache cache;
-        private HashMap<K, Node<K, V>> map;
+        private final ConcurrentHashMap<K, KeyNode<K, V>> map;
 
         public Segment(LruCache cache) {
             if (cache == null) {
@@ -83,7 +136,7 @@ public abstract class LruCache {
             }
 
             this.cache = cache;
-            this.map = new HashMap<>();
+            this.map = new ConcurrentHashMap<>(16, 0.75f, cache.readBuffers.length);
         }
 
         protected int sizeOf(K key, V value) {
@@ -91,43 +144,311 @@ public abstract class LruCache {
         }
 
         public final V get(K key) {
-            synchronized (cache) {
-                Node<K, V> node = map.get(key);
-                if (node != null) {
-                    cache.list.makeFirst(node);
-                    return node.value;
-                }
+            KeyNode<K, V> node = map.get(key);
+            if (node != null) {
+                cache.recordAccess(node);
+                return node.value;
             }
 
             return null;
         }
 
         public final void put(K key, V value) {
-            synchronized (cache) {
-                Node<K, V> newNode = new Node<>(this, key, value);
-                Node<K, V> oldNode = map.put(key, newNode);
+            KeyNode<K, V> newNode = new KeyNode<>(this, key, value, sizeOf(key, value));
+            ReentrantLock lock = cache.lock;
+
+            lock.lock();
+            try {
+                KeyNode<K, V> oldNode = map.put(key, newNode);
                 if (oldNode != null) {
-                    throw new IllegalArgumentException("An entry with same key has already been added");
+                    // A concurrent miss has already cached the same key, so replace its entry.
+                    cache.unsafeUnlink(oldNode);
                 }
 
-                cache.size += sizeOf(key, value);
-                cache.list.addFirst(newNode);
+                cache.unsafeLink(newNode);
+            } finally {
+                lock.unlock();
             }
-
-            cache.trimToSize(cache.capacity);
         }
 
         public final void remove(K key) {
-            synchronized (cache) {
-                Node<K, V> node = map.remove(key);
+            ReentrantLock lock = cache.lock;
+
+            lock.lock();
+            try {
+                KeyNode<K, V> node = map.remove(key);
                 if (node != null) {
-                    cache.size -= sizeOf(key, node.value);
-                    cache.list.remove(node);
+                    cache.unsafeUnlink(node);
                 }
+            } finally {
+                lock.unlock();
             }
         }
     }
 
+    /**
+     * A segment specialized for primitive integer keys. The entries are kept in an open addressing
+     * table made of two parallel arrays, one holding the keys and the other holding the nodes, so
+     * that neither a key is boxed nor a map entry is allocated for a lookup.
+     */
+    protected static class IntSegment<V> {
+
+        private static final int MIN_CAPACITY = 16;
+
+        private static class IntNode<V> extends Node<V> {
+
+            final IntSegment<V> segment;
+            final int key;
+
+            IntNode(IntSegment<V> segment, int key, V value, int size) {
+                super(value, size);
+                this.segment = segment;
+                this.key = key;
+            }
+
+            @Override
+            public void unsafeEvict() {
+                segment.unsafeRemove(key, this);
+            }
+        }
+
+        private static class Table {
+
+            final int[] keys;
+            final AtomicReferenceArray<Node> nodes;
+            final int mask;
+
+            Table(int capacity) {
+                keys = new int[capacity];
+                nodes = new AtomicReferenceArray<>(capacity);
+                mask = capacity - 1;
+            }
+        }
+
+        private static final Node TOMBSTONE = new Node(null, 0) {
+            @Override
+            public void unsafeEvict() {
+            }
+        };
+
+        private static int slotOf(int key, int mask) {
+            int hash = key * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        protected final LruCache cache;
+        private volatile Table table;
+        private int count;
+        private int occupied;
+
+        public IntSegment(LruCache cache) {
+            if (cache == null) {
+                throw new NullPointerException();
+            }
+
+            this.cache = cache;
+            this.table = new Table(MIN_CAPACITY);
+        }
+
+        protected int sizeOf(int key, V value) {
+            return 1;
+        }
+
+        public final V get(int key) {
+            IntNode<V> node = find(key);
+            if (node != null) {
+                cache.recordAccess(node);
+                return node.value;
+            }
+
+            return null;
+        }
+
+        /**
+         * Checks whether the key is present without counting it as an access of the entry.
+         */
+        public final boolean containsKey(int key) {
+            return (find(key) != null);
+        }
+
+        /**
+         * Returns the value of the key without counting it as an access of the entry.
+         */
+        public final V peek(int key) {
+            IntNode<V> node = find(key);
+            return (node != null ? node.value : null);
+        }
+
+        private IntNode<V> find(int key) {
+            Table table = this.table;
+            int mask = table.mask;
+            int slot = slotOf(key, mask);
+
+            for (int probe = 0; probe <= mask; probe++) {
+                Node node = table.nodes.get(slot);
+                if (node == null) {
+                    break;
+                }
+
+                if (node != TOMBSTONE && table.keys[slot] == key) {
+                    IntNode<V> intNode = (IntNode<V>) node;
+                    if (intNode.key == key) {
+                        return intNode;
+                    }
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return null;
+        }
+
+        public final void put(int key, V value) {
+            IntNode<V> newNode = new IntNode<>(this, key, value, sizeOf(key, value));
+            ReentrantLock lock = cache.lock;
+
+            lock.lock();
+            try {
+                IntNode<V> oldNode = unsafeRemove(key, null);
+                if (oldNode != null) {
+                    // A concurrent miss has already cached the same key, so replace its entry.
+                    cache.unsafeUnlink(oldNode);
+                }
+
+                unsafeInsert(newNode);
+                cache.unsafeLink(newNode);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public final void remove(int key) {
+            ReentrantLock lock = cache.lock;
+
+            lock.lock();
+            try {
+                IntNode<V> node = unsafeRemove(key, null);
+                if (node != null) {
+                    cache.unsafeUnlink(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes all the entries of this segment from the cache.
+         */
+        public final void clear() {
+            ReentrantLock lock = cache.lock;
+
+            lock.lock();
+            try {
+                Table table = this.table;
+                for (int i = 0; i <= table.mask; i++) {
+                    Node node = table.nodes.get(i);
+                    if (node != null && node != TOMBSTONE) {
+                        cache.unsafeUnlink(node);
+                    }
+                }
+
+                this.table = new Table(MIN_CAPACITY);
+                this.count = 0;
+                this.occupied = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void unsafeInsert(IntNode<V> node) {
+            if ((occupied + 1) * 4 > (table.mask + 1) * 3) {
+                unsafeRehash();
+            }
+
+            Table table = this.table;
+            int mask = table.mask;
+            int slot = slotOf(node.key, mask);
+
+            while (true) {
+                Node current = table.nodes.get(slot);
+                if (current == null || current == TOMBSTONE) {
+                    if (current == null) {
+                        occupied++;
+                    }
+
+                    // Write the key before publishing the node so that readers never match a node
+                    // against a stale key.
+                    table.keys[slot] = node.key;
+                    table.nodes.set(slot, node);
+                    count++;
+                    break;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private IntNode<V> unsafeRemove(int key, IntNode<V> expected) {
+            Table table = this.table;
+            int mask = table.mask;
+            int slot = slotOf(key, mask);
+
+            for (int probe = 0; probe <= mask; probe++) {
+                Node node = table.nodes.get(slot);
+                if (node == null) {
+                    break;
+                }
+
+                if (node != TOMBSTONE && table.keys[slot] == key) {
+                    if (expected != null && node != expected) {
+                        break;
+                    }
+
+                    table.nodes.set(slot, TOMBSTONE);
+                    count--;
+
+                    return (IntNode<V>) node;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return null;
+        }
+
+        private void unsafeRehash() {
+            Table oldTable = this.table;
+            int capacity = MIN_CAPACITY;
+            while (count * 2 >= capacity) {
+                capacity <<= 1;
+            }
+
+            Table newTable = new Table(capacity);
+            int newMask = newTable.mask;
+
+            for (int i = 0; i <= oldTable.mask; i++) {
+                Node node = oldTable.nodes.get(i);
+                if (node != null && node != TOMBSTONE) {
+                    int key = oldTable.keys[i];
+                    int slot = slotOf(key, newMask);
+
+                    while (newTable.nodes.get(slot) != null) {
+                        slot = (slot + 1) & newMask;
+                    }
+
+                    newTable.keys[slot] = key;
+                    newTable.nodes.set(slot, node);
+                }
+            }
+
+            this.occupied = count;
+            this.table = newTable;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer[] readBuffers;
+    private final int stripeMask;
     private List list;
     private int capacity;
     private int size;
@@ -137,39 +458,131 @@ public abstract class LruCache {
             throw new IllegalArgumentException("Invalid Capacity: " + capacity);
         }
 
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripeCount = Integer.highestOneBit(Math.max(1, processors - 1)) << 1;
+
+        this.readBuffers = new ReadBuffer[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.readBuffers[i] = new ReadBuffer();
+        }
+        this.stripeMask = stripeCount - 1;
         this.list = new List();
         this.capacity = capacity;
         this.size = 0;
     }
 
-    public synchronized final int capacity() {
-        return capacity;
+    public final int capacity() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized final int size() {
-        return size;
+    public final int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void clear() {
-        list.clear();
+    public void clear() {
+        lock.lock();
+        try {
+            for (ReadBuffer buffer : readBuffers) {
+                for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                    buffer.nodes.set(i, null);
+                }
+            }
+
+            Node node = list.last();
+            while (node != list.header) {
+                node.unsafeEvict();
+                node = node.previous;
+            }
+
+            list.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void trimToSize(int maxSize) {
-        while (true) {
-            synchronized (this) {
-                if (size <= maxSize) {
-                    break;
-                }
+        lock.lock();
+        try {
+            unsafeDrainReadBuffers();
+            unsafeTrimToSize(maxSize);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                Node toEvict = list.last();
-                if (toEvict == list.header) {
-                    break;
-                }
+    private ReadBuffer currentReadBuffer() {
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        return readBuffers[stripe];
+    }
 
-                Segment segment = toEvict.segment;
-                Object key = toEvict.key;
-                segment.remove(key);
+    private void recordAccess(Node node) {
+        ReadBuffer buffer = currentReadBuffer();
+        int index = buffer.counter.getAndIncrement() & READ_BUFFER_MASK;
+
+        buffer.nodes.lazySet(index, node);
+
+        // Reorder the recency list once per full buffer, skipping it if another thread is already
+        // doing the bookkeeping.
+        if (index == READ_BUFFER_MASK && lock.tryLock()) {
+            try {
+                unsafeDrainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void unsafeDrainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            unsafeDrainReadBuffer(buffer);
+        }
+    }
+
+    private void unsafeDrainReadBuffer(ReadBuffer buffer) {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            Node node = buffer.nodes.getAndSet(i, null);
+            if (node != null && node.isLinked()) {
+                list.makeFirst(node);
+            }
+        }
+    }
+
+    private void unsafeLink(Node node) {
+        size += node.size;
+        list.addFirst(node);
+
+        // The hits of other threads are applied once their own buffers fill up.
+        unsafeDrainReadBuffer(currentReadBuffer());
+        unsafeTrimToSize(capacity);
+    }
+
+    private void unsafeUnlink(Node node) {
+        if (node.isLinked()) {
+            size -= node.size;
+            list.remove(node);
+        }
+    }
+
+    private void unsafeTrimToSize(int maxSize) {
+        while (size > maxSize) {
+            Node toEvict = list.last();
+            if (toEvict == list.header) {
+                break;
             }
+
+            toEvict.unsafeEvict();
+            unsafeUnlink(toEvict);
         }
     }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.layout;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Represents a cursor which walks a range of text of a typesetter and yields the boundaries of
+ * successive lines fitting in a given width. Each line end is the same as would be suggested by
+ * {@link Typesetter#suggestForwardBreak(int, int, float, BreakMode)} for the remaining range.
+ *
+ * @see Typesetter#createBreakCursor(int, int, float, BreakMode)
+ */
+public class BreakCursor {
+
+    private final Typesetter mTypesetter;
+    private final int mCharEnd;
+    private final float mBreakWidth;
+    private final BreakMode mBreakMode;
+    private final BreakStrategy mBreakStrategy;
+    private int mCharIndex;
+    private int mRunIndex;
+    private int mResolveCount = -1;
+    private int[] mPendingBreaks;
+    private int mPendingIndex;
+
+    BreakCursor(Typesetter typesetter, int charStart, int charEnd,
+                float breakWidth, BreakMode breakMode, BreakStrategy breakStrategy) {
+        mTypesetter = typesetter;
+        mCharEnd = charEnd;
+        mBreakWidth = breakWidth;
+        mBreakMode = breakMode;
+        mBreakStrategy = breakStrategy;
+        mCharIndex = charStart;
+    }
+
+    /**
+     * Returns the index to the first character of the next line.
+     *
+     * @return The index to the first character of the next line.
+     */
+    public int getCharIndex() {
+        return mCharIndex;
+    }
+
+    /**
+     * Returns <code>true</code> if there are more characters left to be broken into lines.
+     *
+     * @return <code>true</code> if there is a next line, <code>false</code> otherwise.
+     */
+    public boolean hasNext() {
+        return mCharIndex < mCharEnd;
+    }
+
+    /**
+     * Finds the break of the next line and moves this cursor past it.
+     *
+     * @return The index (exclusive) of the last character of the next line.
+     *
+     * @throws NoSuchElementException if there are no more lines.
+     */
+    public int next() {
+        if (mCharIndex >= mCharEnd) {
+            throw new NoSuchElementException();
+        }
+
+        // A lazy typesetter resolves the paragraph of the line on demand, shifting the run indexes.
+        mTypesetter.resolveRange(mCharIndex, mCharIndex + 1);
+
+        int resolveCount = mTypesetter.getResolveCount();
+        if (resolveCount != mResolveCount) {
+            mRunIndex = mTypesetter.indexOfGlyphRun(mCharIndex);
+            mResolveCount = resolveCount;
+        } else {
+            mRunIndex = mTypesetter.advanceRunIndex(mRunIndex, mCharIndex);
+        }
+
+        int lineEnd;
+
+        if (mBreakStrategy == BreakStrategy.TOTAL_FIT) {
+            // Breaks are chosen for a whole paragraph at once, when the cursor enters it.
+            if (mPendingBreaks == null || mPendingIndex == mPendingBreaks.length) {
+                mPendingBreaks = mTypesetter.suggestTotalFitBreaks(mCharIndex, mCharEnd, mBreakWidth);
+                mPendingIndex = 0;
+            }
+            lineEnd = mPendingBreaks[mPendingIndex++];
+        } else {
+            lineEnd = mTypesetter.suggestForwardBreak(mRunIndex, mCharIndex, mCharEnd, mBreakWidth, mBreakMode);
+        }
+
+        mCharIndex = lineEnd;
+
+        return lineEnd;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.layout;
+
+/**
+ * Specifies the strategy for choosing the line breaks of a paragraph.
+ */
+public enum BreakStrategy {
+    /**
+     * Fills each line with as much text as possible before moving to the next one.
+     */
+    GREEDY,
+    /**
+     * Chooses the breaks of a whole paragraph together so that the lines are as evenly filled as
+     * possible, minimizing the sum of squared leftover widths of all lines except the last one.
+     */
+    TOTAL_FIT
+}
@@ -17,9 +17,11 @@
 package com.mta.tehreer.layout;
 
 import android.graphics.Canvas;
+import android.graphics.RectF;
 
 import com.mta.tehreer.graphics.Renderer;
 import com.mta.tehreer.internal.Description;
+import com.mta.tehreer.internal.util.CachedPicture;
 
 import java.util.Collections;
 import java.util.List;
@@ -33,6 +35,7 @@ public class ComposedFrame {
     private int mCharStart;
     private int mCharEnd;
     private List<ComposedLine> mLineList;
+    private CachedPicture mCachedPicture;
 
     ComposedFrame(int charStart, int charEnd, List<ComposedLine> lineList) {
         mCharStart = charStart;
@@ -67,6 +70,23 @@ public class ComposedFrame {
         return mLineList;
     }
 
+    /**
+     * Rasterizes the glyphs of this frame on a background thread, so that a subsequent draw with
+     * the given <code>renderer</code> finds them in the glyph cache. Like drawing, this method
+     * sets the typeface and type size of the renderer for each run.
+     *
+     * @param renderer The renderer that will be used for drawing this frame.
+     */
+    public void prefetchGlyphs(Renderer renderer) {
+        for (ComposedLine composedLine : mLineList) {
+            for (GlyphRun glyphRun : composedLine.getRuns()) {
+                renderer.setTypeface(glyphRun.getTypeface());
+                renderer.setTypeSize(glyphRun.getTypeSize());
+                renderer.prefetchGlyphs(glyphRun.getGlyphIds());
+            }
+        }
+    }
+
     /**
      * Draws this frame onto the given <code>canvas</code> using the given <code>renderer</code>.
      *
@@ -83,6 +103,68 @@ public class ComposedFrame {
         }
     }
 
+    /**
+     * Draws this frame like {@link #draw(Renderer, Canvas, float, float)}, but records the drawing
+     * into a picture on first use and replays the picture on later calls. The picture is recorded
+     * again if the frame is drawn with another renderer or the styles of the renderer are changed.
+     * <p>
+     * It turns redrawing a static frame into a single operation. A hardware accelerated canvas
+     * cannot replay the picture before Android Q, so the frame is drawn directly onto it.
+     *
+     * @param renderer The renderer to use for drawing this frame.
+     * @param canvas The canvas onto which to draw this frame.
+     * @param x The x- position at which to draw this frame.
+     * @param y The y- position at which to draw this frame.
+     */
+    public void drawCached(Renderer renderer, Canvas canvas, float x, float y) {
+        if (!CachedPicture.canReplay(canvas)) {
+            draw(renderer, canvas, x, y);
+            return;
+        }
+
+        if (mCachedPicture == null) {
+            mCachedPicture = new CachedPicture();
+        }
+
+        if (!mCachedPicture.isValid(renderer)) {
+            Canvas recordingCanvas = mCachedPicture.beginRecording(renderer, computeDrawingBounds(renderer));
+            draw(renderer, recordingCanvas, 0.0f, 0.0f);
+            mCachedPicture.endRecording();
+        }
+
+        canvas.translate(x, y);
+        mCachedPicture.draw(canvas);
+        canvas.translate(-x, -y);
+    }
+
+    /**
+     * Computes the bounds of everything drawn by this frame, including the glyphs overshooting
+     * their lines along with the stroke and shadow of the renderer.
+     */
+    private RectF computeDrawingBounds(Renderer renderer) {
+        RectF drawingBounds = new RectF();
+
+        for (ComposedLine composedLine : mLineList) {
+            float lineX = composedLine.getOriginX();
+            float lineY = composedLine.getOriginY();
+
+            drawingBounds.union(lineX, lineY - composedLine.getAscent(),
+                                lineX + composedLine.getWidth(), lineY + composedLine.getDescent());
+
+            for (GlyphRun glyphRun : composedLine.getRuns()) {
+                RectF inkBounds = glyphRun.computeBoundingBox(renderer, 0, glyphRun.getGlyphCount());
+                inkBounds.offset(lineX + (glyphRun.getOriginX() * renderer.getScaleX()),
+                                 lineY + (glyphRun.getOriginY() * renderer.getScaleY()));
+
+                drawingBounds.union(inkBounds);
+            }
+        }
+
+        CachedPicture.addEffectExtent(renderer, drawingBounds);
+
+        return drawingBounds;
+    }
+
     @Override
     public String toString() {
         return "ComposedFrame{charStart=" + mCharStart
@@ -18,7 +18,6 @@ package com.mta.tehreer.layout;
 
 import com.mta.tehreer.graphics.Typeface;
 import com.mta.tehreer.sfnt.WritingDirection;
-import com.mta.tehreer.sfnt.ShapingResult;
 
 class IntrinsicRun {
 
@@ -34,9 +33,10 @@ class IntrinsicRun {
     final float[] glyphOffsets;
     final float[] glyphAdvances;
     final int[] clusterMap;
+    private final double[] advanceSums;
 
-    IntrinsicRun(ShapingResult shapingResult, Typeface typeface, float typeSize,
-                 byte bidiLevel, WritingDirection writingDirection) {
+    IntrinsicRun(ShapingCache.Entry entry, int charStart, int charEnd, Typeface typeface,
+                 float typeSize, byte bidiLevel, WritingDirection writingDirection) {
         float sizeByEm = typeSize / typeface.getUnitsPerEm();
 
         this.typeface = typeface;
@@ -44,13 +44,44 @@ class IntrinsicRun {
         this.sizeByEm = sizeByEm;
         this.bidiLevel = bidiLevel;
         this.writingDirection = writingDirection;
-        this.isBackward = shapingResult.isBackward();
-        this.charStart = shapingResult.getCharStart();
-        this.charEnd = shapingResult.getCharEnd();
-        this.glyphIds = shapingResult.getGlyphIds().toArray();
-        this.glyphOffsets = shapingResult.getGlyphOffsets().toArray();
-        this.glyphAdvances = shapingResult.getGlyphAdvances().toArray();
-        this.clusterMap = shapingResult.getClusterMap().toArray();
+        this.isBackward = entry.isBackward;
+        this.charStart = charStart;
+        this.charEnd = charEnd;
+        this.glyphIds = entry.glyphIds;
+        this.glyphOffsets = entry.glyphOffsets;
+        this.glyphAdvances = entry.glyphAdvances;
+        this.clusterMap = entry.clusterMap;
+        this.advanceSums = sumAdvances(entry.glyphAdvances);
+    }
+
+    IntrinsicRun(IntrinsicRun other, int charOffset) {
+        this.typeface = other.typeface;
+        this.typeSize = other.typeSize;
+        this.sizeByEm = other.sizeByEm;
+        this.bidiLevel = other.bidiLevel;
+        this.writingDirection = other.writingDirection;
+        this.isBackward = other.isBackward;
+        this.charStart = other.charStart + charOffset;
+        this.charEnd = other.charEnd + charOffset;
+        this.glyphIds = other.glyphIds;
+        this.glyphOffsets = other.glyphOffsets;
+        this.glyphAdvances = other.glyphAdvances;
+        this.clusterMap = other.clusterMap;
+        this.advanceSums = other.advanceSums;
+    }
+
+    private static double[] sumAdvances(float[] glyphAdvances) {
+        // Sums are kept in double precision so that subtracting them stays exact for long runs.
+        int glyphCount = glyphAdvances.length;
+        double[] advanceSums = new double[glyphCount + 1];
+        double advanceSum = 0.0;
+
+        for (int i = 0; i < glyphCount; i++) {
+            advanceSum += glyphAdvances[i];
+            advanceSums[i + 1] = advanceSum;
+        }
+
+        return advanceSums;
     }
 
     WritingDirection writingDirection() {
@@ -98,12 +129,6 @@ class IntrinsicRun {
     }
 
     float measureGlyphs(int glyphStart, int glyphEnd) {
-        float size = 0.0f;
-
-        for (int i = glyphStart; i < glyphEnd; i++) {
-            size += glyphAdvances[i];
-        }
-
-        return size;
+        return (float) (advanceSums[glyphEnd] - advanceSums[glyphStart]);
     }
 }
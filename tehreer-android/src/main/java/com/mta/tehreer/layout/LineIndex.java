@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.layout;
+
+import java.util.Arrays;
+
+/**
+ * Represents the boundaries and vertical positions of the lines of a text broken at a given width.
+ * The index is kept in primitive arrays, so it stays compact for documents having hundreds of
+ * thousands of lines, and both the line at a vertical position and the line of a character are
+ * found with a binary search.
+ * <p>
+ * The vertical positions are relative to the top of the first line.
+ *
+ * @see Typesetter#createLineIndex(int, int, float)
+ */
+public class LineIndex {
+
+    private final int mLineCount;
+    private final int[] mLineStarts;
+    private final float[] mLineTops;
+    private final float[] mLineAscents;
+    private final float mWidth;
+
+    LineIndex(int lineCount, int[] lineStarts, float[] lineTops, float[] lineAscents, float width) {
+        mLineCount = lineCount;
+        mLineStarts = lineStarts;
+        mLineTops = lineTops;
+        mLineAscents = lineAscents;
+        mWidth = width;
+    }
+
+    /**
+     * Returns the index to the first character of the first line in source text.
+     *
+     * @return The index to the first character of the first line in source text.
+     */
+    public int getCharStart() {
+        return mLineStarts[0];
+    }
+
+    /**
+     * Returns the index after the last character of the last line in source text.
+     *
+     * @return The index after the last character of the last line in source text.
+     */
+    public int getCharEnd() {
+        return mLineStarts[mLineCount];
+    }
+
+    /**
+     * Returns the number of lines in this index.
+     *
+     * @return The number of lines in this index.
+     */
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * Returns the width of the widest line, including its trailing whitespace.
+     *
+     * @return The width of the widest line.
+     */
+    public float getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the total height of the lines.
+     *
+     * @return The total height of the lines.
+     */
+    public float getHeight() {
+        return mLineTops[mLineCount];
+    }
+
+    private void checkLineIndex(int lineIndex) {
+        if (lineIndex < 0 || lineIndex >= mLineCount) {
+            throw new IndexOutOfBoundsException("Line Index: " + lineIndex + ", Line Count: " + mLineCount);
+        }
+    }
+
+    /**
+     * Returns the index to the first character of the specified line in source text.
+     *
+     * @param lineIndex The index of the line.
+     * @return The index to the first character of the line.
+     *
+     * @throws IndexOutOfBoundsException if <code>lineIndex</code> is out of range.
+     */
+    public int getLineCharStart(int lineIndex) {
+        checkLineIndex(lineIndex);
+        return mLineStarts[lineIndex];
+    }
+
+    /**
+     * Returns the index after the last character of the specified line in source text.
+     *
+     * @param lineIndex The index of the line.
+     * @return The index after the last character of the line.
+     *
+     * @throws IndexOutOfBoundsException if <code>lineIndex</code> is out of range.
+     */
+    public int getLineCharEnd(int lineIndex) {
+        checkLineIndex(lineIndex);
+        return mLineStarts[lineIndex + 1];
+    }
+
+    /**
+     * Returns the top of the specified line.
+     *
+     * @param lineIndex The index of the line.
+     * @return The top of the line.
+     *
+     * @throws IndexOutOfBoundsException if <code>lineIndex</code> is out of range.
+     */
+    public float getLineTop(int lineIndex) {
+        checkLineIndex(lineIndex);
+        return mLineTops[lineIndex];
+    }
+
+    /**
+     * Returns the baseline of the specified line, which is its top moved down by its ascent.
+     *
+     * @param lineIndex The index of the line.
+     * @return The baseline of the line.
+     *
+     * @throws IndexOutOfBoundsException if <code>lineIndex</code> is out of range.
+     */
+    public float getLineBaseline(int lineIndex) {
+        checkLineIndex(lineIndex);
+        return mLineTops[lineIndex] + mLineAscents[lineIndex];
+    }
+
+    /**
+     * Returns the height of the specified line, which is the sum of its ascent and descent.
+     *
+     * @param lineIndex The index of the line.
+     * @return The height of the line.
+     *
+     * @throws IndexOutOfBoundsException if <code>lineIndex</code> is out of range.
+     */
+    public float getLineHeight(int lineIndex) {
+        checkLineIndex(lineIndex);
+        return mLineTops[lineIndex + 1] - mLineTops[lineIndex];
+    }
+
+    /**
+     * Returns the index of the line containing the given vertical position. Positions above the
+     * first line map to the first line and the ones below the last line map to the last line.
+     *
+     * @param y The vertical position.
+     * @return The index of the line at <code>y</code>.
+     */
+    public int getLineForY(float y) {
+        int index = Arrays.binarySearch(mLineTops, 0, mLineCount, y);
+        if (index < 0) {
+            index = -index - 2;
+        }
+
+        return Math.max(0, Math.min(index, mLineCount - 1));
+    }
+
+    /**
+     * Returns the index of the line containing the specified character.
+     *
+     * @param charIndex The index of the character in source text.
+     * @return The index of the line containing the character.
+     *
+     * @throws IllegalArgumentException if <code>charIndex</code> is less than the start, or greater
+     *         than or equal to the end of this index.
+     */
+    public int getLineForCharIndex(int charIndex) {
+        if (charIndex < mLineStarts[0] || charIndex >= mLineStarts[mLineCount]) {
+            throw new IllegalArgumentException("Char Index: " + charIndex
+                                               + ", Range: [" + mLineStarts[0] + ".." + mLineStarts[mLineCount] + ")");
+        }
+
+        int index = Arrays.binarySearch(mLineStarts, 0, mLineCount, charIndex);
+        if (index < 0) {
+            index = -index - 2;
+        }
+
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "LineIndex{charStart=" + getCharStart()
+                + ", charEnd=" + getCharEnd()
+                + ", lineCount=" + mLineCount
+                + ", width=" + mWidth
+                + ", height=" + getHeight()
+                + "}";
+    }
+}
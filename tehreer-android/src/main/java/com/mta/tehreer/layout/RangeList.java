@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.layout;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of consecutive elements of text, such as paragraphs or runs, along with their character
+ * ranges. The list is spliced in place within spare capacity. The ranges following a splice are
+ * moved lazily: a single shift stays pending for the tail of the list and is applied only to the
+ * elements lying between two splices, or to the ones being accessed, so that consecutive edits at
+ * nearby places do not touch the whole list.
+ */
+abstract class RangeList<E> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    private Object[] elements = new Object[MIN_CAPACITY];
+    private int[] starts = new int[MIN_CAPACITY];
+    private int[] ends = new int[MIN_CAPACITY];
+    private int size;
+    // The elements at or after this index are yet to be moved by the pending shift.
+    private int shiftIndex;
+    private int pendingShift;
+
+    /**
+     * Returns the element moved by the given number of characters. The elements holding their
+     * own indexes are copied, as they may be shared with the lines created before the edit.
+     */
+    abstract E moveElement(E element, int delta);
+
+    int size() {
+        return size;
+    }
+
+    int getStart(int index) {
+        return starts[index] + (index < shiftIndex ? 0 : pendingShift);
+    }
+
+    int getEnd(int index) {
+        return ends[index] + (index < shiftIndex ? 0 : pendingShift);
+    }
+
+    @SuppressWarnings("unchecked")
+    E get(int index) {
+        if (index >= shiftIndex) {
+            applyShift(index + 1);
+        }
+
+        return (E) elements[index];
+    }
+
+    /**
+     * Returns the index of the element containing the given character, or <code>-1</code> if it
+     * lies before the first element.
+     */
+    int indexOf(int charIndex) {
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int start = getStart(mid);
+
+            if (start < charIndex) {
+                low = mid + 1;
+            } else if (start > charIndex) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        // The character lies in the element starting before the insertion point.
+        return low - 1;
+    }
+
+    /**
+     * Replaces the elements in the given range of the list with new ones, moving the ranges of the
+     * following elements by the given delta.
+     */
+    void splice(int fromIndex, int toIndex, List<? extends E> values, int[] valueStarts, int[] valueEnds,
+                int delta) {
+        // Move the fewest elements needed for a single shift to remain pending after the splice.
+        if (shiftIndex < fromIndex) {
+            moveRange(shiftIndex, fromIndex, pendingShift);
+            shiftIndex = toIndex;
+            pendingShift += delta;
+        } else if (shiftIndex <= toIndex) {
+            shiftIndex = toIndex;
+            pendingShift += delta;
+        } else if (shiftIndex - toIndex <= size - shiftIndex) {
+            moveRange(toIndex, shiftIndex, delta);
+            pendingShift += delta;
+        } else {
+            moveRange(shiftIndex, size, pendingShift);
+            shiftIndex = toIndex;
+            pendingShift = delta;
+        }
+
+        int valueCount = values.size();
+        int sizeChange = valueCount - (toIndex - fromIndex);
+        int newSize = size + sizeChange;
+
+        if (sizeChange != 0) {
+            ensureCapacity(newSize);
+
+            int tailLength = size - toIndex;
+            int newEnd = fromIndex + valueCount;
+            System.arraycopy(elements, toIndex, elements, newEnd, tailLength);
+            System.arraycopy(starts, toIndex, starts, newEnd, tailLength);
+            System.arraycopy(ends, toIndex, ends, newEnd, tailLength);
+
+            if (sizeChange < 0) {
+                Arrays.fill(elements, newSize, size, null);
+            }
+        }
+
+        for (int i = 0; i < valueCount; i++) {
+            elements[fromIndex + i] = values.get(i);
+            starts[fromIndex + i] = valueStarts[i];
+            ends[fromIndex + i] = valueEnds[i];
+        }
+
+        size = newSize;
+        shiftIndex += sizeChange;
+        if (shiftIndex == size) {
+            pendingShift = 0;
+        }
+    }
+
+    private void applyShift(int toIndex) {
+        moveRange(shiftIndex, toIndex, pendingShift);
+        shiftIndex = toIndex;
+        if (shiftIndex == size) {
+            pendingShift = 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void moveRange(int fromIndex, int toIndex, int delta) {
+        if (delta == 0) {
+            return;
+        }
+
+        for (int i = fromIndex; i < toIndex; i++) {
+            elements[i] = moveElement((E) elements[i], delta);
+            starts[i] += delta;
+            ends[i] += delta;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        int oldCapacity = starts.length;
+        if (capacity > oldCapacity) {
+            int newCapacity = Math.max(oldCapacity + (oldCapacity >> 1), capacity);
+            elements = Arrays.copyOf(elements, newCapacity);
+            starts = Arrays.copyOf(starts, newCapacity);
+            ends = Arrays.copyOf(ends, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.layout;
+
+import com.mta.tehreer.graphics.Typeface;
+import com.mta.tehreer.internal.util.LruCache;
+import com.mta.tehreer.sfnt.ShapingOrder;
+import com.mta.tehreer.sfnt.WritingDirection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded cache of shaping results which can be shared by typesetters. A run of text that
+ * has been shaped once with the same typeface, type size, script, language, writing direction and
+ * shaping order is reused instead of being shaped again.
+ * <p>
+ * The cache is thread safe.
+ *
+ * @see Typesetter#setShapingCache(ShapingCache)
+ */
+public class ShapingCache {
+
+    static class Key {
+
+        final String text;
+        final Typeface typeface;
+        final float typeSize;
+        final int scriptTag;
+        final int languageTag;
+        final WritingDirection writingDirection;
+        final ShapingOrder shapingOrder;
+        private final int hash;
+
+        Key(String text, Typeface typeface, float typeSize, int scriptTag, int languageTag,
+            WritingDirection writingDirection, ShapingOrder shapingOrder) {
+            this.text = text;
+            this.typeface = typeface;
+            this.typeSize = typeSize;
+            this.scriptTag = scriptTag;
+            this.languageTag = languageTag;
+            this.writingDirection = writingDirection;
+            this.shapingOrder = shapingOrder;
+
+            final int prime = 31;
+            int result = text.hashCode();
+            result = prime * result + typeface.hashCode();
+            result = prime * result + Float.floatToIntBits(typeSize);
+            result = prime * result + scriptTag;
+            result = prime * result + languageTag;
+            result = prime * result + writingDirection.hashCode();
+            result = prime * result + shapingOrder.hashCode();
+
+            this.hash = result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this != obj) {
+                if (obj == null || !(obj instanceof Key)) {
+                    return false;
+                }
+
+                Key other = (Key) obj;
+                if (hash != other.hash
+                        || typeSize != other.typeSize || scriptTag != other.scriptTag
+                        || languageTag != other.languageTag
+                        || writingDirection != other.writingDirection
+                        || shapingOrder != other.shapingOrder
+                        || !typeface.equals(other.typeface) || !text.equals(other.text)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The glyphs of a shaped run, with cluster map relative to the start of the run. The arrays are
+     * shared by all intrinsic runs created from the entry, so they must never be modified.
+     */
+    static class Entry {
+
+        final boolean isBackward;
+        final int[] glyphIds;
+        final float[] glyphOffsets;
+        final float[] glyphAdvances;
+        final int[] clusterMap;
+
+        Entry(boolean isBackward, int[] glyphIds, float[] glyphOffsets,
+              float[] glyphAdvances, int[] clusterMap) {
+            this.isBackward = isBackward;
+            this.glyphIds = glyphIds;
+            this.glyphOffsets = glyphOffsets;
+            this.glyphAdvances = glyphAdvances;
+            this.clusterMap = clusterMap;
+        }
+    }
+
+    private static class Storage extends LruCache {
+
+        private static class Segment extends LruCache.Segment<Key, Entry> {
+
+            //
+            // Key:
+            //  - 4 pointers for text, typeface, writing direction and shaping order
+            //  - 4 integers for type size, script tag, language tag and hash
+            //
+            // Entry:
+            //  - 4 pointers for arrays
+            //  - 1 integer for backward flag
+            //  - 4 array headers (3 integers each)
+            //
+            // LruCache.Node:
+            //  - 5 pointers for segment, key, value, previous and next
+            //  - 1 integer for size
+            //
+            // Total:
+            //  - 13 pointers
+            //  - 18 integers
+            //
+            // Size: (13 * 4) + (18 * 4) = 124
+            //
+            private static final int ESTIMATED_OVERHEAD = 124;
+
+            Segment(LruCache cache) {
+                super(cache);
+            }
+
+            @Override
+            protected int sizeOf(Key key, Entry value) {
+                int glyphCount = value.glyphIds.length;
+                int charCount = key.text.length();
+
+                // Glyph id, two offsets and advance per glyph, plus a char and a cluster index per char.
+                return (glyphCount * 16) + (charCount * 6) + ESTIMATED_OVERHEAD;
+            }
+        }
+
+        private final Segment segment = new Segment(this);
+
+        Storage(int capacity) {
+            super(capacity);
+        }
+
+        Entry get(Key key) {
+            return segment.get(key);
+        }
+
+        void put(Key key, Entry entry) {
+            segment.put(key, entry);
+        }
+    }
+
+    private final Storage mStorage;
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private volatile boolean mWordShapingEnabled;
+
+    /**
+     * Constructs a shaping cache.
+     *
+     * @param maxSize The maximum size of the cache in bytes, as estimated from the number of
+     *                characters and glyphs of the cached runs.
+     *
+     * @throws IllegalArgumentException if <code>maxSize</code> is not positive.
+     */
+    public ShapingCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size is not positive");
+        }
+
+        mStorage = new Storage(maxSize);
+    }
+
+    /**
+     * Returns whether runs are shaped and cached word by word. The default value is
+     * <code>false</code>.
+     *
+     * @return <code>true</code> if word shaping is enabled, <code>false</code> otherwise.
+     */
+    public boolean isWordShapingEnabled() {
+        return mWordShapingEnabled;
+    }
+
+    /**
+     * Enables or disables word shaping. With word shaping enabled, runs are split at spaces and
+     * each word is shaped and cached on its own, so a word that recurs in a document is shaped only
+     * once regardless of the text surrounding it.
+     * <p>
+     * Word shaping must only be enabled for fonts that have no contextual substitutions or
+     * positioning across spaces, e.g. kerning between a space and a letter, because such lookups
+     * are not applied when words are shaped separately.
+     *
+     * @param enabled <code>true</code> to enable word shaping, <code>false</code> to disable it.
+     */
+    public void setWordShapingEnabled(boolean enabled) {
+        mWordShapingEnabled = enabled;
+    }
+
+    Entry get(Key key) {
+        Entry entry = mStorage.get(key);
+        if (entry != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    void put(Key key, Entry entry) {
+        mStorage.put(key, entry);
+    }
+
+    /**
+     * Returns the number of lookups that found a shaped run in this cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups that had to shape the run.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Removes all the shaped runs from this cache. The hit and miss counters are left untouched.
+     */
+    public void clear() {
+        mStorage.clear();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.layout;
+
+/**
+ * Represents the size of the lines of a text broken at a given width. The metrics object is the
+ * output of the measurement performed by a typesetter object, which breaks the text into lines
+ * without composing them.
+ *
+ * @see Typesetter#measureText(int, int, float, int)
+ */
+public class TextMetrics {
+
+    private final int mCharStart;
+    private final int mCharEnd;
+    private final int mLineCount;
+    private final float mWidth;
+    private final float mHeight;
+
+    TextMetrics(int charStart, int charEnd, int lineCount, float width, float height) {
+        mCharStart = charStart;
+        mCharEnd = charEnd;
+        mLineCount = lineCount;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Returns the index to the first character of the measured lines in source text.
+     *
+     * @return The index to the first character of the measured lines in source text.
+     */
+    public int getCharStart() {
+        return mCharStart;
+    }
+
+    /**
+     * Returns the index after the last character of the measured lines in source text. It is less
+     * than the end of the requested range if the lines were limited.
+     *
+     * @return The index after the last character of the measured lines in source text.
+     */
+    public int getCharEnd() {
+        return mCharEnd;
+    }
+
+    /**
+     * Returns the number of measured lines.
+     *
+     * @return The number of measured lines.
+     */
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * Returns the width of the widest line, including its trailing whitespace.
+     *
+     * @return The width of the widest line.
+     */
+    public float getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the total height of the measured lines.
+     *
+     * @return The total height of the measured lines.
+     */
+    public float getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "TextMetrics{charStart=" + mCharStart
+                + ", charEnd=" + mCharEnd
+                + ", lineCount=" + mLineCount
+                + ", width=" + mWidth
+                + ", height=" + mHeight
+                + "}";
+    }
+}
@@ -18,6 +18,7 @@ package com.mta.tehreer.layout;
 
 import android.graphics.RectF;
 import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 
 import com.mta.tehreer.graphics.Typeface;
@@ -36,10 +37,14 @@ import com.mta.tehreer.unicode.BidiParagraph;
 import com.mta.tehreer.unicode.BidiRun;
 
 import java.text.BreakIterator;
+import java.text.StringCharacterIterator;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Represents a typesetter which performs text layout. It can be used to create lines, perform line
@@ -61,21 +66,75 @@ public class Typesetter {
         }
     }
 
+    private static class ParagraphList extends RangeList<BidiParagraph> {
+
+        @Override
+        BidiParagraph moveElement(BidiParagraph paragraph, int delta) {
+            // A paragraph is relative to its bidi algorithm, so only its range is moved.
+            return paragraph;
+        }
+
+        int getOffset(int index) {
+            return getStart(index) - get(index).getCharStart();
+        }
+    }
+
+    private static class RunList extends RangeList<IntrinsicRun> {
+
+        @Override
+        IntrinsicRun moveElement(IntrinsicRun run, int delta) {
+            return new IntrinsicRun(run, delta);
+        }
+    }
+
     private static final byte BREAK_TYPE_NONE = 0;
     private static final byte BREAK_TYPE_LINE = 1 << 0;
     private static final byte BREAK_TYPE_CHARACTER = 1 << 2;
     private static final byte BREAK_TYPE_PARAGRAPH = 1 << 4;
 
+    // Bounds the candidate lines considered by total-fit breaking for each break opportunity.
+    private static final int MAX_ACTIVE_BREAKS = 128;
+
     private static byte specializeBreakType(byte breakType, boolean forward) {
         return (byte) (forward ? breakType : breakType << 1);
     }
 
+    private static volatile ShapingCache shapingCache;
+
+    /**
+     * Returns the shaping cache shared by all typesetters, or <code>null</code> if shaping results
+     * are not cached. The default value is <code>null</code>.
+     *
+     * @return The shared shaping cache, or <code>null</code>.
+     */
+    public static ShapingCache getShapingCache() {
+        return shapingCache;
+    }
+
+    /**
+     * Sets the shaping cache shared by all typesetters. With a cache in place, a typesetter reuses
+     * the glyphs of runs that have already been shaped with the same typeface, type size, script,
+     * language and writing direction, which saves most of the time spent on constructing a
+     * typesetter for recurring strings.
+     *
+     * @param cache The shaping cache to use, or <code>null</code> to disable caching.
+     */
+    public static void setShapingCache(ShapingCache cache) {
+        shapingCache = cache;
+    }
+
     private final Finalizable finalizable = new Finalizable();
     private String mText;
     private Spanned mSpanned;
     private byte[] mBreakRecord;
-    private ArrayList<BidiParagraph> mBidiParagraphs;
-    private ArrayList<IntrinsicRun> mIntrinsicRuns;
+    private final ParagraphList mBidiParagraphs = new ParagraphList();
+    private final RunList mIntrinsicRuns = new RunList();
+    private BidiAlgorithm mBidiAlgorithm;
+    private int mBidiStart;
+    private int mBidiEnd;
+    private ShapingEngine mShapingEngine;
+    private int mResolvedLength;
+    private int mResolveCount;
 
     /**
      * Constructs the typesetter object using given text, typeface and type size.
@@ -102,7 +161,7 @@ public class Typesetter {
         spanned.setSpan(new TypefaceSpan(typeface), 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
         spanned.setSpan(new TypeSizeSpan(typeSize), 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
 
-        init(text, spanned);
+        init(text, spanned, null);
 	}
 
     /**
@@ -121,18 +180,248 @@ public class Typesetter {
             throw new IllegalArgumentException("Spanned text is empty");
         }
 
-        init(StringUtils.copyString(spanned), spanned);
+        init(StringUtils.copyString(spanned), spanned, null);
+    }
+
+    /**
+     * Constructs the typesetter object using a spanned text, resolving the paragraphs in parallel
+     * on the given executor.
+     * <p>
+     * The text is divided into groups of whole paragraphs, one for each available processor, and
+     * bidirectional analysis and shaping of each group runs as a separate task. The constructing
+     * thread takes part in the work and returns only after all tasks have finished. The resulting
+     * typesetter is identical to the one constructed sequentially, so this is only beneficial for
+     * long texts having several paragraphs.
+     * <p>
+     * <strong>Note:</strong> The spanned text must not be modified while the typesetter is being
+     * constructed as it is read concurrently by the tasks.
+     *
+     * @param spanned The spanned text to typeset.
+     * @param executor The executor to run the paragraph tasks on.
+     *
+     * @throws NullPointerException if <code>spanned</code> is null, or <code>executor</code> is
+     *         null.
+     * @throws IllegalArgumentException if <code>spanned</code> is empty.
+     */
+    public Typesetter(Spanned spanned, Executor executor) {
+        if (spanned == null) {
+            throw new NullPointerException("Spanned text is null");
+        }
+        if (executor == null) {
+            throw new NullPointerException("Executor is null");
+        }
+        if (spanned.length() == 0) {
+            throw new IllegalArgumentException("Spanned text is empty");
+        }
+
+        init(StringUtils.copyString(spanned), spanned, executor);
+    }
+
+    private Typesetter() {
+    }
+
+    /**
+     * Creates a typesetter object which resolves the paragraphs of a spanned text lazily.
+     * <p>
+     * A lazy typesetter does not find breaks, run bidirectional algorithm or shape the text upfront.
+     * Instead, each paragraph is resolved the first time a line or a break is requested within it,
+     * so that the cost of laying out a long text is proportional to the part actually displayed.
+     * For example, a frame created from the start of a document only resolves the paragraphs that
+     * fit in the frame.
+     * <p>
+     * <strong>Note:</strong> As a lazy typesetter modifies its state on access, it must not be used
+     * from multiple threads at the same time.
+     *
+     * @param spanned The spanned text to typeset.
+     * @return A new lazy typesetter object.
+     *
+     * @throws NullPointerException if <code>spanned</code> is null.
+     * @throws IllegalArgumentException if <code>spanned</code> is empty.
+     */
+    public static Typesetter createLazy(Spanned spanned) {
+        if (spanned == null) {
+            throw new NullPointerException("Spanned text is null");
+        }
+        if (spanned.length() == 0) {
+            throw new IllegalArgumentException("Spanned text is empty");
+        }
+
+        Typesetter typesetter = new Typesetter();
+        typesetter.initLazy(StringUtils.copyString(spanned), spanned);
+
+        return typesetter;
     }
 
-    private void init(String text, Spanned spanned) {
+    private void init(String text, Spanned spanned, Executor executor) {
         mText = text;
         mSpanned = spanned;
         mBreakRecord = new byte[text.length()];
-        mBidiParagraphs = new ArrayList<>();
-        mIntrinsicRuns = new ArrayList<>();
 
         resolveBreaks();
-        resolveBidi();
+        if (executor == null) {
+            resolveBidi();
+        } else {
+            resolveBidi(executor);
+        }
+        mResolvedLength = text.length();
+    }
+
+    private void initLazy(String text, Spanned spanned) {
+        mText = text;
+        mSpanned = spanned;
+        mBreakRecord = new byte[text.length()];
+    }
+
+    /**
+     * Replaces the given range of source text with the provided characters, along with their spans
+     * if they are spanned. Only the paragraphs touched by the edit are analyzed and shaped again;
+     * the rest of the paragraphs are kept as they are. The indexes of the following paragraphs and
+     * runs are moved lazily, so that consecutive edits at nearby places only cost in proportion to
+     * the distance between them. The source text and its spans are still copied on each edit,
+     * which takes linear time, though it is cheap compared to analyzing and shaping the text.
+     * <p>
+     * The spans overlapping the replaced range are adjusted as in
+     * {@link SpannableStringBuilder#replace(int, int, CharSequence)}. If the edited text cannot be
+     * typeset, for example because a part of it has no typeface, the exception is thrown and the
+     * typesetter is left as it was before the edit. The lines, frames and break cursors created
+     * before an edit keep referring to the previous text, so they must not be mixed with the ones
+     * created afterwards.
+     *
+     * @param charStart The index to the first character of the range to replace.
+     * @param charEnd The index after the last character of the range to replace.
+     * @param replacement The characters to put in place of the range, which may be empty.
+     *
+     * @throws NullPointerException if <code>replacement</code> is null.
+     * @throws IllegalArgumentException if <code>charStart</code> is negative, or
+     *         <code>charEnd</code> is greater than the length of source text, or
+     *         <code>charStart</code> is greater than <code>charEnd</code>, or the text would become
+     *         empty after the replacement.
+     */
+    public void replaceText(int charStart, int charEnd, CharSequence replacement) {
+        if (replacement == null) {
+            throw new NullPointerException("Replacement is null");
+        }
+        int oldLength = mText.length();
+        if (charStart < 0) {
+            throw new IllegalArgumentException("Char Start: " + charStart);
+        }
+        if (charEnd > oldLength) {
+            throw new IllegalArgumentException("Char End: " + charEnd + ", Text Length: " + oldLength);
+        }
+        if (charStart > charEnd) {
+            throw new IllegalArgumentException("Bad Range: [" + charStart + ".." + charEnd + ")");
+        }
+        int delta = replacement.length() - (charEnd - charStart);
+        if (oldLength + delta == 0) {
+            throw new IllegalArgumentException("Text would become empty");
+        }
+
+        // An edit at the edge of a paragraph may merge it with its neighbour, so the paragraphs on
+        // both sides of the range are invalidated too.
+        int touchedStart = Math.max(charStart - 1, 0);
+        int touchedEnd = Math.min(charEnd, oldLength - 1) + 1;
+        resolveRange(touchedStart, touchedEnd);
+
+        int firstParagraph = indexOfBidiParagraph(touchedStart);
+        int lastParagraph = indexOfBidiParagraph(touchedEnd - 1);
+        int affectedStart = mBidiParagraphs.getStart(firstParagraph);
+        int affectedEnd = mBidiParagraphs.getEnd(lastParagraph);
+        int firstRun = indexOfGlyphRun(affectedStart);
+        int lastRun = indexOfGlyphRun(affectedEnd - 1);
+
+        SpannableStringBuilder spanned = new SpannableStringBuilder(mSpanned);
+        spanned.replace(charStart, charEnd, replacement);
+
+        String text = StringUtils.copyString(spanned);
+        int newLength = text.length();
+        int newAffectedEnd = affectedEnd + delta;
+
+        String oldText = mText;
+        Spanned oldSpanned = mSpanned;
+        byte[] affectedBreaks = new byte[newAffectedEnd - affectedStart];
+        ArrayList<BidiParagraph> paragraphs = new ArrayList<>();
+        ArrayList<IntrinsicRun> runs = new ArrayList<>();
+        BidiAlgorithm bidiAlgorithm = null;
+        ShapingEngine shapingEngine = null;
+        boolean resolved = false;
+
+        // Shaping reads the new text from the fields, which are restored if the edited text fails
+        // to resolve, so that the typesetter is only modified after the edit has succeeded.
+        mText = text;
+        mSpanned = spanned;
+
+        try {
+            resolveBreaks(text, affectedBreaks, affectedStart, affectedStart, newAffectedEnd);
+
+            // Analyze only the affected portion of the text.
+            bidiAlgorithm = new BidiAlgorithm(text.substring(affectedStart, newAffectedEnd));
+            shapingEngine = new ShapingEngine();
+
+            resolveParagraphs(bidiAlgorithm, affectedStart, shapingEngine, affectedStart, newAffectedEnd,
+                              paragraphs, runs);
+            resolved = true;
+        } finally {
+            if (shapingEngine != null) {
+                shapingEngine.dispose();
+            }
+            if (bidiAlgorithm != null) {
+                bidiAlgorithm.dispose();
+            }
+
+            if (!resolved) {
+                mText = oldText;
+                mSpanned = oldSpanned;
+
+                for (BidiParagraph paragraph : paragraphs) {
+                    paragraph.dispose();
+                }
+            }
+        }
+
+        spliceBreaks(affectedStart, affectedEnd, affectedBreaks, oldLength);
+
+        for (int i = firstParagraph; i <= lastParagraph; i++) {
+            mBidiParagraphs.get(i).dispose();
+        }
+        spliceElements(firstParagraph, lastParagraph + 1, firstRun, lastRun + 1,
+                       paragraphs, affectedStart, runs, delta);
+
+        mResolvedLength += delta;
+        mResolveCount++;
+
+        if (mBidiAlgorithm != null && mBidiEnd > affectedStart) {
+            // The bidi algorithm of unresolved text stays valid as long as its text is untouched,
+            // in which case it is only moved along with the edit.
+            if (mBidiStart >= affectedEnd) {
+                mBidiStart += delta;
+                mBidiEnd += delta;
+            } else {
+                mBidiAlgorithm.dispose();
+                mBidiAlgorithm = null;
+            }
+        }
+        if (mResolvedLength == newLength) {
+            disposeLazyResolution();
+        }
+    }
+
+    /**
+     * Replaces the given range of break record with the breaks of the edited text, keeping the
+     * breaks before and after it. The record is modified in place if it has enough capacity.
+     */
+    private void spliceBreaks(int affectedStart, int affectedEnd, byte[] affectedBreaks, int oldLength) {
+        int newAffectedEnd = affectedStart + affectedBreaks.length;
+        int newLength = oldLength + (newAffectedEnd - affectedEnd);
+        byte[] breakRecord = mBreakRecord;
+
+        if (newLength > breakRecord.length) {
+            breakRecord = new byte[newLength + (newLength >> 3)];
+            System.arraycopy(mBreakRecord, 0, breakRecord, 0, affectedStart);
+        }
+        System.arraycopy(mBreakRecord, affectedEnd, breakRecord, newAffectedEnd, oldLength - affectedEnd);
+        System.arraycopy(affectedBreaks, 0, breakRecord, affectedStart, affectedBreaks.length);
+
+        mBreakRecord = breakRecord;
     }
 
     /**
@@ -145,19 +434,36 @@ public class Typesetter {
     }
 
     private void resolveBreaks() {
-        resolveBreaks(BreakIterator.getLineInstance(), BREAK_TYPE_LINE);
-        resolveBreaks(BreakIterator.getCharacterInstance(), BREAK_TYPE_CHARACTER);
+        resolveBreaks(0, mText.length());
+    }
+
+    private void resolveBreaks(int charStart, int charEnd) {
+        resolveBreaks(mText, mBreakRecord, 0, charStart, charEnd);
     }
 
-    private void resolveBreaks(BreakIterator breakIterator, byte breakType) {
-        breakIterator.setText(mText);
+    /**
+     * Records the breaks in the given range of text into a break record whose first element
+     * belongs to the character at the given index.
+     */
+    private static void resolveBreaks(String text, byte[] breakRecord, int recordStart,
+                                      int charStart, int charEnd) {
+        resolveBreaks(BreakIterator.getLineInstance(), BREAK_TYPE_LINE,
+                      text, breakRecord, recordStart, charStart, charEnd);
+        resolveBreaks(BreakIterator.getCharacterInstance(), BREAK_TYPE_CHARACTER,
+                      text, breakRecord, recordStart, charStart, charEnd);
+    }
+
+    private static void resolveBreaks(BreakIterator breakIterator, byte breakType,
+                                      String text, byte[] breakRecord, int recordStart,
+                                      int charStart, int charEnd) {
+        breakIterator.setText(new StringCharacterIterator(text, charStart, charEnd, charStart));
         breakIterator.first();
 
         byte forwardType = specializeBreakType(breakType, true);
         int charNext;
 
         while ((charNext = breakIterator.next()) != BreakIterator.DONE) {
-            mBreakRecord[charNext - 1] |= forwardType;
+            breakRecord[charNext - 1 - recordStart] |= forwardType;
         }
 
         breakIterator.last();
@@ -165,58 +471,355 @@ public class Typesetter {
         int charIndex;
 
         while ((charIndex = breakIterator.previous()) != BreakIterator.DONE) {
-            mBreakRecord[charIndex] |= backwardType;
+            breakRecord[charIndex - recordStart] |= backwardType;
         }
     }
 
     private void resolveBidi() {
+        ArrayList<BidiParagraph> paragraphs = new ArrayList<>();
+        ArrayList<IntrinsicRun> runs = new ArrayList<>();
+
+        try {
+            resolveBidi(0, mText.length(), paragraphs, runs);
+        } finally {
+            // The paragraphs of a failed construction are still kept so that they get disposed by
+            // the finalizer.
+            appendElements(paragraphs, 0, runs);
+        }
+    }
+
+    /**
+     * Resolves the paragraphs and runs in the given range of text. Bidi algorithm and shaping
+     * engine objects are not thread safe, so each call works with its own ones.
+     */
+    private void resolveBidi(int charStart, int charEnd,
+                             List<BidiParagraph> paragraphs, List<IntrinsicRun> runs) {
         // TODO: Analyze script runs.
 
         BidiAlgorithm bidiAlgorithm = null;
         ShapingEngine shapingEngine = null;
 
         try {
-            bidiAlgorithm = new BidiAlgorithm(mText);
+            // Analyze only the text of the range.
+            bidiAlgorithm = new BidiAlgorithm(mText.substring(charStart, charEnd));
             shapingEngine = new ShapingEngine();
 
-            BaseDirection baseDirection = BaseDirection.DEFAULT_LEFT_TO_RIGHT;
-            byte forwardType = specializeBreakType(BREAK_TYPE_PARAGRAPH, true);
-            byte backwardType = specializeBreakType(BREAK_TYPE_PARAGRAPH, false);
+            resolveParagraphs(bidiAlgorithm, charStart, shapingEngine, charStart, charEnd,
+                              paragraphs, runs);
+        } finally {
+            if (shapingEngine != null) {
+                shapingEngine.dispose();
+            }
+            if (bidiAlgorithm != null) {
+                bidiAlgorithm.dispose();
+            }
+        }
+    }
 
-            int paragraphStart = 0;
-            int suggestedEnd = mText.length();
+    private static class ParagraphChunk implements Runnable {
 
-            while (paragraphStart != suggestedEnd) {
-                BidiParagraph paragraph = bidiAlgorithm.createParagraph(paragraphStart, suggestedEnd, baseDirection);
-                for (BidiRun bidiRun : paragraph.getLogicalRuns()) {
-                    int scriptTag = SfntTag.make(bidiRun.isRightToLeft() ? "arab" : "latn");
-                    WritingDirection writingDirection = ShapingEngine.getScriptDirection(scriptTag);
+        final Typesetter typesetter;
+        final int charStart;
+        final int charEnd;
+        final ArrayList<BidiParagraph> paragraphs = new ArrayList<>();
+        final ArrayList<IntrinsicRun> runs = new ArrayList<>();
 
-                    shapingEngine.setScriptTag(scriptTag);
-                    shapingEngine.setWritingDirection(writingDirection);
+        ParagraphChunk(Typesetter typesetter, int charStart, int charEnd) {
+            this.typesetter = typesetter;
+            this.charStart = charStart;
+            this.charEnd = charEnd;
+        }
 
-                    resolveTypefaces(bidiRun.charStart, bidiRun.charEnd,
-                                     bidiRun.embeddingLevel, shapingEngine);
-                }
-                mBidiParagraphs.add(paragraph);
+        @Override
+        public void run() {
+            typesetter.resolveBidi(charStart, charEnd, paragraphs, runs);
+        }
+    }
+
+    /**
+     * Groups whole paragraphs of the text into chunks of roughly equal length, one for each
+     * available processor.
+     */
+    private void addParagraphChunks(List<ParagraphChunk> chunks) {
+        BidiAlgorithm bidiAlgorithm = null;
 
-                mBreakRecord[paragraph.getCharStart()] |= backwardType;
-                mBreakRecord[paragraph.getCharEnd() - 1] |= forwardType;
+        try {
+            bidiAlgorithm = new BidiAlgorithm(mText);
 
-                paragraphStart = paragraph.getCharEnd();
+            int textLength = mText.length();
+            int chunkCount = Runtime.getRuntime().availableProcessors();
+            int chunkLength = (textLength + chunkCount - 1) / chunkCount;
+            int chunkStart = 0;
+
+            while (chunkStart != textLength) {
+                int suggestedEnd = Math.min(chunkStart + chunkLength, textLength);
+                int chunkEnd = chunkStart;
+
+                do {
+                    chunkEnd = bidiAlgorithm.getParagraphBoundary(chunkEnd, textLength);
+                } while (chunkEnd < suggestedEnd);
+
+                chunks.add(new ParagraphChunk(this, chunkStart, chunkEnd));
+                chunkStart = chunkEnd;
             }
         } finally {
-            if (shapingEngine != null) {
-                shapingEngine.dispose();
-            }
             if (bidiAlgorithm != null) {
                 bidiAlgorithm.dispose();
             }
         }
     }
 
+    private void resolveBidi(Executor executor) {
+        ArrayList<ParagraphChunk> chunks = new ArrayList<>();
+        ArrayList<FutureTask<Void>> tasks = new ArrayList<>();
+        Throwable failure = null;
+
+        try {
+            addParagraphChunks(chunks);
+
+            // Hand over all chunks except the first one to the executor.
+            for (int i = 1; i < chunks.size(); i++) {
+                FutureTask<Void> task = new FutureTask<>(chunks.get(i), null);
+                tasks.add(task);
+
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    task.run();
+                }
+            }
+
+            // Resolve the first chunk on this thread.
+            if (!chunks.isEmpty()) {
+                chunks.get(0).run();
+            }
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+
+        // Wait for every chunk, even after a failure, so that no worker outlives the constructor.
+        boolean interrupted = false;
+
+        for (FutureTask<Void> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Merge the chunks in order, even after a failure, so that all paragraphs get disposed.
+        for (ParagraphChunk chunk : chunks) {
+            appendElements(chunk.paragraphs, chunk.charStart, chunk.runs);
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * Resolves the paragraphs in the given range of text. The bidi algorithm may be created from a
+     * portion of the text, in which case the offset gives the index of its first character.
+     */
+    private void resolveParagraphs(BidiAlgorithm bidiAlgorithm, int bidiOffset, ShapingEngine shapingEngine,
+                                   int charStart, int charEnd,
+                                   List<BidiParagraph> paragraphs, List<IntrinsicRun> runs) {
+        BaseDirection baseDirection = BaseDirection.DEFAULT_LEFT_TO_RIGHT;
+
+        int paragraphStart = charStart;
+        int suggestedEnd = charEnd;
+
+        while (paragraphStart != suggestedEnd) {
+            BidiParagraph paragraph = bidiAlgorithm.createParagraph(paragraphStart - bidiOffset,
+                                                                    suggestedEnd - bidiOffset, baseDirection);
+            paragraphs.add(paragraph);
+            int paragraphEnd = paragraph.getCharEnd() + bidiOffset;
+
+            for (BidiRun bidiRun : paragraph.getLogicalRuns()) {
+                int scriptTag = SfntTag.make(bidiRun.isRightToLeft() ? "arab" : "latn");
+                WritingDirection writingDirection = ShapingEngine.getScriptDirection(scriptTag);
+
+                shapingEngine.setScriptTag(scriptTag);
+                shapingEngine.setWritingDirection(writingDirection);
+
+                resolveTypefaces(bidiRun.charStart + bidiOffset, bidiRun.charEnd + bidiOffset,
+                                 bidiRun.embeddingLevel, shapingEngine, runs);
+            }
+
+            paragraphStart = paragraphEnd;
+        }
+    }
+
+    /**
+     * Resolves the paragraphs overlapping the given range that have not been resolved yet. It does
+     * nothing if the typesetter is not lazy or all of its paragraphs are already resolved.
+     */
+    void resolveRange(int charStart, int charEnd) {
+        int textLength = mText.length();
+        if (mResolvedLength == textLength) {
+            return;
+        }
+
+        int charIndex = charStart;
+
+        while (charIndex < charEnd) {
+            int paragraphIndex = indexOfBidiParagraph(charIndex);
+            int gapStart = 0;
+
+            if (paragraphIndex >= 0) {
+                gapStart = mBidiParagraphs.getEnd(paragraphIndex);
+                if (gapStart > charIndex) {
+                    // The paragraph is already resolved.
+                    charIndex = gapStart;
+                    continue;
+                }
+            }
+
+            // The unresolved text extends up to the following resolved paragraph.
+            int nextIndex = paragraphIndex + 1;
+            int gapEnd = (nextIndex < mBidiParagraphs.size()
+                          ? mBidiParagraphs.getStart(nextIndex)
+                          : textLength);
+            prepareLazyResolution(gapStart, gapEnd);
+
+            // Walk the boundaries from the end of preceding resolved paragraph.
+            int paragraphStart = gapStart;
+            int paragraphEnd;
+            while ((paragraphEnd = findParagraphBoundary(paragraphStart, gapEnd)) <= charIndex) {
+                paragraphStart = paragraphEnd;
+            }
+
+            resolveParagraph(nextIndex, paragraphStart, paragraphEnd);
+            charIndex = paragraphEnd;
+        }
+
+        if (mResolvedLength == textLength) {
+            disposeLazyResolution();
+        }
+    }
+
+    private void prepareLazyResolution(int gapStart, int gapEnd) {
+        if (mBidiAlgorithm != null && (mBidiStart > gapStart || mBidiEnd < gapEnd)) {
+            mBidiAlgorithm.dispose();
+            mBidiAlgorithm = null;
+        }
+        if (mBidiAlgorithm == null) {
+            // Analyze only the unresolved text lying between the resolved paragraphs.
+            mBidiAlgorithm = new BidiAlgorithm(mText.substring(gapStart, gapEnd));
+            mBidiStart = gapStart;
+            mBidiEnd = gapEnd;
+        }
+        if (mShapingEngine == null) {
+            mShapingEngine = new ShapingEngine();
+        }
+    }
+
+    private void disposeLazyResolution() {
+        if (mShapingEngine != null) {
+            mShapingEngine.dispose();
+            mShapingEngine = null;
+        }
+        if (mBidiAlgorithm != null) {
+            mBidiAlgorithm.dispose();
+            mBidiAlgorithm = null;
+        }
+    }
+
+    private int findParagraphBoundary(int charStart, int charEnd) {
+        return mBidiAlgorithm.getParagraphBoundary(charStart - mBidiStart, charEnd - mBidiStart) + mBidiStart;
+    }
+
+    private void resolveParagraph(int paragraphIndex, int paragraphStart, int paragraphEnd) {
+        ArrayList<BidiParagraph> paragraphs = new ArrayList<>(1);
+        ArrayList<IntrinsicRun> runs = new ArrayList<>();
+
+        resolveBreaks(paragraphStart, paragraphEnd);
+        resolveParagraphs(mBidiAlgorithm, mBidiStart, mShapingEngine, paragraphStart, paragraphEnd,
+                          paragraphs, runs);
+
+        // Runs of the paragraph go right after the last run of preceding resolved paragraph.
+        int runIndex = indexOfGlyphRun(paragraphStart) + 1;
+        spliceElements(paragraphIndex, paragraphIndex, runIndex, runIndex, paragraphs, mBidiStart, runs, 0);
+
+        mResolvedLength += paragraphEnd - paragraphStart;
+        mResolveCount++;
+    }
+
+    private void appendElements(List<BidiParagraph> paragraphs, int bidiOffset, List<IntrinsicRun> runs) {
+        int paragraphCount = mBidiParagraphs.size();
+        int runCount = mIntrinsicRuns.size();
+
+        spliceElements(paragraphCount, paragraphCount, runCount, runCount, paragraphs, bidiOffset, runs, 0);
+    }
+
+    /**
+     * Replaces the paragraphs and runs in the given ranges of indexes with the new ones, moving the
+     * following ones by the given delta. The new paragraphs belong to a bidi algorithm created from
+     * the text starting at the given offset, and their boundaries are marked in the break record.
+     */
+    private void spliceElements(int paragraphFrom, int paragraphTo, int runFrom, int runTo,
+                                List<BidiParagraph> paragraphs, int bidiOffset,
+                                List<IntrinsicRun> runs, int delta) {
+        byte forwardType = specializeBreakType(BREAK_TYPE_PARAGRAPH, true);
+        byte backwardType = specializeBreakType(BREAK_TYPE_PARAGRAPH, false);
+
+        int paragraphCount = paragraphs.size();
+        int[] paragraphStarts = new int[paragraphCount];
+        int[] paragraphEnds = new int[paragraphCount];
+        for (int i = 0; i < paragraphCount; i++) {
+            BidiParagraph paragraph = paragraphs.get(i);
+            int paragraphStart = paragraph.getCharStart() + bidiOffset;
+            int paragraphEnd = paragraph.getCharEnd() + bidiOffset;
+
+            mBreakRecord[paragraphStart] |= backwardType;
+            mBreakRecord[paragraphEnd - 1] |= forwardType;
+
+            paragraphStarts[i] = paragraphStart;
+            paragraphEnds[i] = paragraphEnd;
+        }
+
+        int runCount = runs.size();
+        int[] runStarts = new int[runCount];
+        int[] runEnds = new int[runCount];
+        for (int i = 0; i < runCount; i++) {
+            IntrinsicRun run = runs.get(i);
+            runStarts[i] = run.charStart;
+            runEnds[i] = run.charEnd;
+        }
+
+        mBidiParagraphs.splice(paragraphFrom, paragraphTo, paragraphs, paragraphStarts, paragraphEnds, delta);
+        mIntrinsicRuns.splice(runFrom, runTo, runs, runStarts, runEnds, delta);
+    }
+
+    /**
+     * Returns the number of times new paragraphs have been resolved, so that the holders of run
+     * indexes can find out when they have been shifted.
+     */
+    int getResolveCount() {
+        return mResolveCount;
+    }
+
     private void resolveTypefaces(int charStart, int charEnd, byte bidiLevel,
-                                  ShapingEngine shapingEngine) {
+                                  ShapingEngine shapingEngine, List<IntrinsicRun> runs) {
         Spanned spanned = mSpanned;
         TopSpanIterator<TypefaceSpan> iterator = new TopSpanIterator<>(spanned, charStart, charEnd, TypefaceSpan.class);
 
@@ -230,12 +833,13 @@ public class Typesetter {
                                                    + spanStart + ".." + spanEnd + ")");
             }
 
-            resolveFonts(spanStart, spanEnd, bidiLevel, shapingEngine, spanObject.getTypeface());
+            resolveFonts(spanStart, spanEnd, bidiLevel, shapingEngine, spanObject.getTypeface(), runs);
         }
     }
 
     private void resolveFonts(int charStart, int charEnd, byte bidiLevel,
-                              ShapingEngine shapingEngine, Typeface typeface) {
+                              ShapingEngine shapingEngine, Typeface typeface,
+                              List<IntrinsicRun> runs) {
         Spanned spanned = mSpanned;
         TopSpanIterator<TypeSizeSpan> iterator = new TopSpanIterator<>(spanned, charStart, charEnd, TypeSizeSpan.class);
 
@@ -256,7 +860,7 @@ public class Typesetter {
             }
 
             IntrinsicRun intrinsicRun = resolveGlyphs(spanStart, spanEnd, bidiLevel, shapingEngine, typeface, typeSize);
-            mIntrinsicRuns.add(intrinsicRun);
+            runs.add(intrinsicRun);
         }
     }
 
@@ -265,19 +869,111 @@ public class Typesetter {
         shapingEngine.setTypeface(typeface);
         shapingEngine.setTypeSize(typeSize);
 
+        ShapingCache cache = shapingCache;
+        ShapingCache.Entry entry;
+
+        if (cache == null) {
+            entry = shapeText(shapingEngine, charStart, charEnd);
+        } else if (cache.isWordShapingEnabled()) {
+            entry = shapeWords(cache, shapingEngine, charStart, charEnd);
+        } else {
+            entry = shapeText(cache, shapingEngine, charStart, charEnd);
+        }
+
+        return new IntrinsicRun(entry, charStart, charEnd, typeface, typeSize,
+                                bidiLevel, shapingEngine.getWritingDirection());
+    }
+
+    private ShapingCache.Entry shapeText(ShapingEngine shapingEngine, int charStart, int charEnd) {
         ShapingResult shapingResult = null;
-        IntrinsicRun intrinsicRun = null;
 
         try {
             shapingResult = shapingEngine.shapeText(mText, charStart, charEnd);
-            intrinsicRun = new IntrinsicRun(shapingResult, typeface, typeSize, bidiLevel, shapingEngine.getWritingDirection());
+
+            return new ShapingCache.Entry(shapingResult.isBackward(),
+                                          shapingResult.getGlyphIds().toArray(),
+                                          shapingResult.getGlyphOffsets().toArray(),
+                                          shapingResult.getGlyphAdvances().toArray(),
+                                          shapingResult.getClusterMap().toArray());
         } finally {
             if (shapingResult != null) {
                 shapingResult.dispose();
             }
         }
+    }
+
+    private ShapingCache.Entry shapeText(ShapingCache cache, ShapingEngine shapingEngine,
+                                         int charStart, int charEnd) {
+        ShapingCache.Key key = new ShapingCache.Key(mText.substring(charStart, charEnd),
+                                                    shapingEngine.getTypeface(), shapingEngine.getTypeSize(),
+                                                    shapingEngine.getScriptTag(), shapingEngine.getLanguageTag(),
+                                                    shapingEngine.getWritingDirection(), shapingEngine.getShapingOrder());
+
+        ShapingCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            entry = shapeText(shapingEngine, charStart, charEnd);
+            cache.put(key, entry);
+        }
+
+        return entry;
+    }
+
+    private ShapingCache.Entry shapeWords(ShapingCache cache, ShapingEngine shapingEngine,
+                                          int charStart, int charEnd) {
+        ArrayList<ShapingCache.Entry> words = new ArrayList<>();
+        ArrayList<Integer> wordStarts = new ArrayList<>();
+        int glyphCount = 0;
+        int wordStart = charStart;
+
+        // Split the text into words and single spaces, shaping each of them through the cache.
+        while (wordStart < charEnd) {
+            int wordEnd = wordStart + 1;
+
+            if (mText.charAt(wordStart) != ' ') {
+                while (wordEnd < charEnd && mText.charAt(wordEnd) != ' ') {
+                    wordEnd++;
+                }
+            }
+
+            ShapingCache.Entry word = shapeText(cache, shapingEngine, wordStart, wordEnd);
+            words.add(word);
+            wordStarts.add(wordStart);
+            glyphCount += word.glyphIds.length;
+
+            wordStart = wordEnd;
+        }
+
+        int wordCount = words.size();
+        if (wordCount == 1) {
+            return words.get(0);
+        }
+
+        boolean isBackward = words.get(0).isBackward;
+        int[] glyphIds = new int[glyphCount];
+        float[] glyphOffsets = new float[glyphCount * 2];
+        float[] glyphAdvances = new float[glyphCount];
+        int[] clusterMap = new int[charEnd - charStart];
+        int glyphStart = 0;
+
+        // Backward glyphs are laid out from the last word to the first one.
+        for (int i = 0; i < wordCount; i++) {
+            int wordIndex = (!isBackward ? i : (wordCount - i) - 1);
+            ShapingCache.Entry word = words.get(wordIndex);
+            int wordGlyphCount = word.glyphIds.length;
+            int clusterStart = wordStarts.get(wordIndex) - charStart;
+
+            System.arraycopy(word.glyphIds, 0, glyphIds, glyphStart, wordGlyphCount);
+            System.arraycopy(word.glyphOffsets, 0, glyphOffsets, glyphStart * 2, wordGlyphCount * 2);
+            System.arraycopy(word.glyphAdvances, 0, glyphAdvances, glyphStart, wordGlyphCount);
+
+            for (int j = 0; j < word.clusterMap.length; j++) {
+                clusterMap[clusterStart + j] = word.clusterMap[j] + glyphStart;
+            }
 
-        return intrinsicRun;
+            glyphStart += wordGlyphCount;
+        }
+
+        return new ShapingCache.Entry(isBackward, glyphIds, glyphOffsets, glyphAdvances, clusterMap);
     }
 
     private String checkRange(int charStart, int charEnd) {
@@ -294,38 +990,12 @@ public class Typesetter {
         return null;
     }
 
-    private int indexOfBidiParagraph(final int charIndex) {
-        return Collections.binarySearch(mBidiParagraphs, null, new Comparator<BidiParagraph>() {
-            @Override
-            public int compare(BidiParagraph obj1, BidiParagraph obj2) {
-                if (charIndex < obj1.getCharStart()) {
-                    return 1;
-                }
-
-                if (charIndex >= obj1.getCharEnd()) {
-                    return -1;
-                }
-
-                return 0;
-            }
-        });
+    private int indexOfBidiParagraph(int charIndex) {
+        return mBidiParagraphs.indexOf(charIndex);
     }
 
-    private int indexOfGlyphRun(final int charIndex) {
-        return Collections.binarySearch(mIntrinsicRuns, null, new Comparator<IntrinsicRun>() {
-            @Override
-            public int compare(IntrinsicRun obj1, IntrinsicRun obj2) {
-                if (charIndex < obj1.charStart) {
-                    return 1;
-                }
-
-                if (charIndex >= obj1.charEnd) {
-                    return -1;
-                }
-
-                return 0;
-            }
-        });
+    int indexOfGlyphRun(int charIndex) {
+        return mIntrinsicRuns.indexOf(charIndex);
     }
 
     private byte getCharParagraphLevel(int charIndex) {
@@ -335,10 +1005,22 @@ public class Typesetter {
     }
 
     private float measureChars(int charStart, int charEnd) {
+        if (charEnd > charStart) {
+            return measureChars(indexOfGlyphRun(charStart), charStart, charEnd);
+        }
+
+        return 0.0f;
+    }
+
+    /**
+     * Measures the given range of characters, looking for the run of first character onwards from
+     * the given run index, which must not be past that run.
+     */
+    private float measureChars(int runIndex, int charStart, int charEnd) {
         float measuredWidth = 0.0f;
 
         if (charEnd > charStart) {
-            int runIndex = indexOfGlyphRun(charStart);
+            runIndex = advanceRunIndex(runIndex, charStart);
 
             do {
                 IntrinsicRun intrinsicRun = mIntrinsicRuns.get(runIndex);
@@ -358,7 +1040,15 @@ public class Typesetter {
         return measuredWidth;
     }
 
-    private int findForwardBreak(byte breakType, int charStart, int charEnd, float maxWidth) {
+    int advanceRunIndex(int runIndex, int charIndex) {
+        while (mIntrinsicRuns.get(runIndex).charEnd <= charIndex) {
+            runIndex++;
+        }
+
+        return runIndex;
+    }
+
+    private int findForwardBreak(byte breakType, int runIndex, int charStart, int charEnd, float maxWidth) {
         int forwardBreak = charStart;
         int charIndex = charStart;
         float measuredWidth = 0.0f;
@@ -373,7 +1063,8 @@ public class Typesetter {
             if ((charType & mustType) == mustType) {
                 int segmentEnd = charIndex + 1;
 
-                measuredWidth += measureChars(forwardBreak, segmentEnd);
+                runIndex = advanceRunIndex(runIndex, forwardBreak);
+                measuredWidth += measureChars(runIndex, forwardBreak, segmentEnd);
                 if (measuredWidth <= maxWidth) {
                     forwardBreak = segmentEnd;
                 }
@@ -384,10 +1075,11 @@ public class Typesetter {
             if ((charType & breakType) == breakType) {
                 int segmentEnd = charIndex + 1;
 
-                measuredWidth += measureChars(forwardBreak, segmentEnd);
+                runIndex = advanceRunIndex(runIndex, forwardBreak);
+                measuredWidth += measureChars(runIndex, forwardBreak, segmentEnd);
                 if (measuredWidth > maxWidth) {
                     int whitespaceStart = StringUtils.getTrailingWhitespaceStart(mText, forwardBreak, segmentEnd);
-                    float whitespaceWidth = measureChars(whitespaceStart, segmentEnd);
+                    float whitespaceWidth = measureChars(runIndex, whitespaceStart, segmentEnd);
 
                     // Break if excluding whitespaces width helps.
                     if ((measuredWidth - whitespaceWidth) <= maxWidth) {
@@ -448,8 +1140,8 @@ public class Typesetter {
         return backwardBreak;
     }
 
-    private int suggestForwardCharBreak(int charStart, int charEnd, float maxWidth) {
-        int forwardBreak = findForwardBreak(BREAK_TYPE_CHARACTER, charStart, charEnd, maxWidth);
+    private int suggestForwardCharBreak(int runIndex, int charStart, int charEnd, float maxWidth) {
+        int forwardBreak = findForwardBreak(BREAK_TYPE_CHARACTER, runIndex, charStart, charEnd, maxWidth);
 
         // Take at least one character (grapheme) if max size is too small.
         if (forwardBreak == charStart) {
@@ -490,12 +1182,12 @@ public class Typesetter {
         return backwardBreak;
     }
 
-    private int suggestForwardLineBreak(int charStart, int charEnd, float maxWidth) {
-        int forwardBreak = findForwardBreak(BREAK_TYPE_LINE, charStart, charEnd, maxWidth);
+    private int suggestForwardLineBreak(int runIndex, int charStart, int charEnd, float maxWidth) {
+        int forwardBreak = findForwardBreak(BREAK_TYPE_LINE, runIndex, charStart, charEnd, maxWidth);
 
         // Fallback to character break if no line break occurs in max size.
         if (forwardBreak == charStart) {
-            forwardBreak = suggestForwardCharBreak(charStart, charEnd, maxWidth);
+            forwardBreak = suggestForwardCharBreak(runIndex, charStart, charEnd, maxWidth);
         }
 
         return forwardBreak;
@@ -537,17 +1229,170 @@ public class Typesetter {
             throw new IllegalArgumentException(rangeError);
         }
 
+        resolveRange(charStart, charStart + 1);
+
+        return suggestForwardBreak(indexOfGlyphRun(charStart), charStart, charEnd, breakWidth, breakMode);
+    }
+
+    int suggestForwardBreak(int runIndex, int charStart, int charEnd, float breakWidth, BreakMode breakMode) {
         switch (breakMode) {
         case CHARACTER:
-            return suggestForwardCharBreak(charStart, charEnd, breakWidth);
+            return suggestForwardCharBreak(runIndex, charStart, charEnd, breakWidth);
 
         case LINE:
-            return suggestForwardLineBreak(charStart, charEnd, breakWidth);
+            return suggestForwardLineBreak(runIndex, charStart, charEnd, breakWidth);
         }
 
         return -1;
     }
 
+    private float measureLine(int charStart, int charEnd) {
+        int whitespaceStart = StringUtils.getTrailingWhitespaceStart(mText, charStart, charEnd);
+        return measureChars(charStart, whitespaceStart);
+    }
+
+    /**
+     * Finds the line breaks from the given index up to the end of its paragraph, or the given end
+     * index if it comes earlier, that minimize the sum of squared leftover widths of the lines.
+     */
+    int[] suggestTotalFitBreaks(int charStart, int charEnd, float maxWidth) {
+        int paragraphEnd = Math.min(charEnd, mBidiParagraphs.getEnd(indexOfBidiParagraph(charStart)));
+        byte lineType = specializeBreakType(BREAK_TYPE_LINE, true);
+
+        // Each node is a break with the least cost of the lines before it and the node it follows.
+        int capacity = 16;
+        int[] nodeBreaks = new int[capacity];
+        double[] nodeCosts = new double[capacity];
+        int[] nodeLinks = new int[capacity];
+        int nodeCount = 1;
+        int activeStart = 0;
+
+        nodeBreaks[0] = charStart;
+        nodeCosts[0] = 0.0;
+        nodeLinks[0] = -1;
+
+        for (int charIndex = charStart; charIndex < paragraphEnd; charIndex++) {
+            int breakIndex = charIndex + 1;
+            boolean isLast = (breakIndex == paragraphEnd);
+
+            if (!isLast && (mBreakRecord[charIndex] & lineType) != lineType) {
+                continue;
+            }
+
+            // Lines only get wider as the break moves ahead, so overflowing nodes never come back.
+            while (activeStart < nodeCount && measureLine(nodeBreaks[activeStart], breakIndex) > maxWidth) {
+                activeStart++;
+            }
+            activeStart = Math.max(activeStart, nodeCount - MAX_ACTIVE_BREAKS);
+
+            int bestNode = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+
+            if (activeStart < nodeCount) {
+                for (int i = activeStart; i < nodeCount; i++) {
+                    double cost = nodeCosts[i];
+                    if (!isLast) {
+                        double slack = maxWidth - measureLine(nodeBreaks[i], breakIndex);
+                        cost += slack * slack;
+                    }
+
+                    if (cost < bestCost) {
+                        bestNode = i;
+                        bestCost = cost;
+                    }
+                }
+            } else {
+                // Even a single word does not fit, so give it a line of its own to be split later.
+                bestNode = nodeCount - 1;
+                bestCost = nodeCosts[bestNode] + ((double) maxWidth * maxWidth);
+                activeStart = nodeCount;
+            }
+
+            if (nodeCount == capacity) {
+                capacity *= 2;
+                nodeBreaks = Arrays.copyOf(nodeBreaks, capacity);
+                nodeCosts = Arrays.copyOf(nodeCosts, capacity);
+                nodeLinks = Arrays.copyOf(nodeLinks, capacity);
+            }
+
+            nodeBreaks[nodeCount] = breakIndex;
+            nodeCosts[nodeCount] = bestCost;
+            nodeLinks[nodeCount] = bestNode;
+            nodeCount++;
+        }
+
+        // Collect the chosen breaks in reverse, splitting the lines that still overflow.
+        int[] lineEnds = new int[16];
+        int lineCount = 0;
+
+        for (int node = nodeCount - 1; node > 0; node = nodeLinks[node]) {
+            int lineStart = nodeBreaks[nodeLinks[node]];
+            int lineEnd = nodeBreaks[node];
+
+            if (measureLine(lineStart, lineEnd) > maxWidth) {
+                int[] splitEnds = new int[4];
+                int splitCount = 0;
+
+                while (lineStart < lineEnd) {
+                    lineStart = suggestForwardBreak(indexOfGlyphRun(lineStart), lineStart, lineEnd,
+                                                    maxWidth, BreakMode.LINE);
+                    if (splitCount == splitEnds.length) {
+                        splitEnds = Arrays.copyOf(splitEnds, splitCount * 2);
+                    }
+                    splitEnds[splitCount++] = lineStart;
+                }
+
+                for (int i = splitCount - 1; i >= 0; i--) {
+                    if (lineCount == lineEnds.length) {
+                        lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+                    }
+                    lineEnds[lineCount++] = splitEnds[i];
+                }
+            } else {
+                if (lineCount == lineEnds.length) {
+                    lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+                }
+                lineEnds[lineCount++] = lineEnd;
+            }
+        }
+
+        int[] orderedEnds = new int[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            orderedEnds[i] = lineEnds[lineCount - i - 1];
+        }
+
+        return orderedEnds;
+    }
+
+    /**
+     * Creates a cursor that finds successive forward breaks in the provided range, i.e. the
+     * boundaries of the lines that fill the given width one after the other. Unlike calling
+     * {@link #suggestForwardBreak(int, int, float, BreakMode)} for each line, the cursor keeps its
+     * position in the runs of the text, so all the lines of the range are found in a single pass.
+     *
+     * @param charStart The index to the first character (inclusive) for break calculations.
+     * @param charEnd The index to the last character (exclusive) for break calculations.
+     * @param breakWidth The requested break width.
+     * @param breakMode The requested break mode.
+     * @return A new break cursor positioned at <code>charStart</code>.
+     *
+     * @throws NullPointerException if <code>breakMode</code> is null.
+     * @throws IllegalArgumentException if <code>charStart</code> is negative, or
+     *         <code>charEnd</code> is greater than the length of source text, or
+     *         <code>charStart</code> is greater than or equal to <code>charEnd</code>
+     */
+    public BreakCursor createBreakCursor(int charStart, int charEnd, float breakWidth, BreakMode breakMode) {
+        if (breakMode == null) {
+            throw new NullPointerException("Break mode is null");
+        }
+        String rangeError = checkRange(charStart, charEnd);
+        if (rangeError != null) {
+            throw new IllegalArgumentException(rangeError);
+        }
+
+        return new BreakCursor(this, charStart, charEnd, breakWidth, breakMode, BreakStrategy.GREEDY);
+    }
+
     /**
      * Suggests a backward break index based on the provided range and width. The measurement
      * proceeds from last character to first character. If there is still room after measuring all
@@ -573,6 +1418,8 @@ public class Typesetter {
             throw new IllegalArgumentException(rangeError);
         }
 
+        resolveRange(charEnd - 1, charEnd);
+
         switch (breakMode) {
         case CHARACTER:
             return suggestBackwardCharBreak(charStart, charEnd, breakWidth);
@@ -601,6 +1448,8 @@ public class Typesetter {
             throw new IllegalArgumentException(rangeError);
         }
 
+        resolveRange(charStart, charEnd);
+
         ArrayList<GlyphRun> lineRuns = new ArrayList<>();
         addContinuousLineRuns(charStart, charEnd, lineRuns);
 
@@ -795,6 +1644,8 @@ public class Typesetter {
     public ComposedLine createCompactLine(int charStart, int charEnd, float maxWidth,
                                           BreakMode breakMode, TruncationPlace truncationPlace,
                                           ComposedLine truncationToken) {
+        resolveRange(charStart, charEnd);
+
         float tokenlessWidth = maxWidth - truncationToken.getWidth();
 
         switch (truncationPlace) {
@@ -975,11 +1826,14 @@ public class Typesetter {
 
         do {
             BidiParagraph bidiParagraph = mBidiParagraphs.get(paragraphIndex);
-            feasibleStart = Math.max(bidiParagraph.getCharStart(), charStart);
-            feasibleEnd = Math.min(bidiParagraph.getCharEnd(), charEnd);
+            int bidiOffset = mBidiParagraphs.getOffset(paragraphIndex);
+            feasibleStart = Math.max(mBidiParagraphs.getStart(paragraphIndex), charStart);
+            feasibleEnd = Math.min(mBidiParagraphs.getEnd(paragraphIndex), charEnd);
 
-            BidiLine bidiLine = bidiParagraph.createLine(feasibleStart, feasibleEnd);
+            BidiLine bidiLine = bidiParagraph.createLine(feasibleStart - bidiOffset, feasibleEnd - bidiOffset);
             for (BidiRun bidiRun : bidiLine.getVisualRuns()) {
+                bidiRun.charStart += bidiOffset;
+                bidiRun.charEnd += bidiOffset;
                 runConsumer.accept(bidiRun);
             }
             bidiLine.dispose();
@@ -1043,12 +1897,33 @@ public class Typesetter {
      * @return The new frame object.
      */
     public ComposedFrame createFrame(int charStart, int charEnd, RectF frameRect, TextAlignment textAlignment) {
+        return createFrame(charStart, charEnd, frameRect, textAlignment, BreakStrategy.GREEDY);
+    }
+
+    /**
+     * Creates a frame full of lines in the rectangle provided by the <code>frameRect</code>
+     * parameter. The typesetter will continue to fill the frame until it either runs out of text or
+     * it finds that text no longer fits. With {@link BreakStrategy#TOTAL_FIT}, the breaks of each
+     * paragraph are chosen together so that its lines are evenly filled.
+     *
+     * @param charStart The index to first character of the frame in source text.
+     * @param charEnd The index after the last character of the frame in source text.
+     * @param frameRect The rectangle specifying the frame to fill.
+     * @param textAlignment The horizontal text alignment of the lines in frame.
+     * @param breakStrategy The strategy for choosing the line breaks.
+     * @return The new frame object.
+     */
+    public ComposedFrame createFrame(int charStart, int charEnd, RectF frameRect,
+                                     TextAlignment textAlignment, BreakStrategy breakStrategy) {
         if (frameRect == null) {
             throw new NullPointerException("Frame rect is null");
         }
         if (textAlignment == null) {
             throw new NullPointerException("Text alignment is null");
         }
+        if (breakStrategy == null) {
+            throw new NullPointerException("Break strategy is null");
+        }
         String rangeError = checkRange(charStart, charEnd);
         if (rangeError != null) {
             throw new IllegalArgumentException(rangeError);
@@ -1076,11 +1951,13 @@ public class Typesetter {
         float frameHeight = frameRect.height();
 
         ArrayList<ComposedLine> frameLines = new ArrayList<>();
+        BreakCursor breakCursor = new BreakCursor(this, charStart, charEnd,
+                                                  frameWidth, BreakMode.LINE, breakStrategy);
         int lineStart = charStart;
         float lineY = frameRect.top;
 
-        while (lineStart != charEnd) {
-            int lineEnd = suggestForwardBreak(lineStart, charEnd, frameWidth, BreakMode.LINE);
+        while (breakCursor.hasNext()) {
+            int lineEnd = breakCursor.next();
             ComposedLine composedLine = createSimpleLine(lineStart, lineEnd);
 
             float lineX = composedLine.getFlushPenOffset(flushFactor, frameWidth);
@@ -1103,9 +1980,200 @@ public class Typesetter {
         return new ComposedFrame(charStart, lineStart, frameLines);
     }
 
+    /**
+     * Computes the ascent, descent and width of the given range of characters as they would be in
+     * a line, without creating the line.
+     */
+    private void measureLineExtent(int charStart, int charEnd, float[] extent) {
+        int runIndex = indexOfGlyphRun(charStart);
+        float ascent = 0.0f;
+        float descent = 0.0f;
+
+        for (int i = runIndex; i < mIntrinsicRuns.size(); i++) {
+            IntrinsicRun intrinsicRun = mIntrinsicRuns.get(i);
+            if (intrinsicRun.charStart >= charEnd) {
+                break;
+            }
+
+            ascent = Math.max(ascent, intrinsicRun.ascent());
+            descent = Math.max(descent, intrinsicRun.descent());
+        }
+
+        extent[0] = ascent;
+        extent[1] = descent;
+        extent[2] = measureChars(runIndex, charStart, charEnd);
+    }
+
+    /**
+     * Measures the lines in the provided range that fill the given width. The lines are broken the
+     * same way as by the frame and line index creation methods, but only their count and size are
+     * computed, so nothing is allocated per line.
+     *
+     * @param charStart The index to first character of the first line in source text.
+     * @param charEnd The index after the last character of the last line in source text.
+     * @param breakWidth The width at which the lines are broken.
+     * @param maxLines The maximum number of lines to measure, or zero for no limit.
+     * @return The metrics of the measured lines.
+     *
+     * @throws IllegalArgumentException if <code>charStart</code> is negative, or
+     *         <code>charEnd</code> is greater than the length of source text, or
+     *         <code>charStart</code> is greater than or equal to <code>charEnd</code>, or
+     *         <code>breakWidth</code> is not positive, or <code>maxLines</code> is negative.
+     */
+    public TextMetrics measureText(int charStart, int charEnd, float breakWidth, int maxLines) {
+        String rangeError = checkRange(charStart, charEnd);
+        if (rangeError != null) {
+            throw new IllegalArgumentException(rangeError);
+        }
+        if (!(breakWidth > 0.0f)) {
+            throw new IllegalArgumentException("Break width is not positive");
+        }
+        if (maxLines < 0) {
+            throw new IllegalArgumentException("Max lines is negative");
+        }
+
+        int lineLimit = (maxLines == 0 ? Integer.MAX_VALUE : maxLines);
+        float[] extent = new float[3];
+        int lineCount = 0;
+        float height = 0.0f;
+        float width = 0.0f;
+
+        BreakCursor breakCursor = new BreakCursor(this, charStart, charEnd,
+                                                  breakWidth, BreakMode.LINE, BreakStrategy.GREEDY);
+        int lineStart = charStart;
+
+        while (lineCount < lineLimit && breakCursor.hasNext()) {
+            int lineEnd = breakCursor.next();
+            measureLineExtent(lineStart, lineEnd, extent);
+
+            lineCount++;
+            height += extent[0] + extent[1];
+            width = Math.max(width, extent[2]);
+            lineStart = lineEnd;
+        }
+
+        return new TextMetrics(charStart, lineStart, lineCount, width, height);
+    }
+
+    /**
+     * Creates an index of the lines in the provided range that fill the given width. The lines are
+     * only measured, not composed, so the index is cheap to create even for a long text.
+     *
+     * @param charStart The index to first character of the first line in source text.
+     * @param charEnd The index after the last character of the last line in source text.
+     * @param breakWidth The width at which the lines are broken.
+     * @return The new line index object.
+     *
+     * @throws IllegalArgumentException if <code>charStart</code> is negative, or
+     *         <code>charEnd</code> is greater than the length of source text, or
+     *         <code>charStart</code> is greater than or equal to <code>charEnd</code>, or
+     *         <code>breakWidth</code> is not positive.
+     */
+    public LineIndex createLineIndex(int charStart, int charEnd, float breakWidth) {
+        String rangeError = checkRange(charStart, charEnd);
+        if (rangeError != null) {
+            throw new IllegalArgumentException(rangeError);
+        }
+        if (!(breakWidth > 0.0f)) {
+            throw new IllegalArgumentException("Break width is not positive");
+        }
+
+        int capacity = 64;
+        int[] lineStarts = new int[capacity + 1];
+        float[] lineTops = new float[capacity + 1];
+        float[] lineAscents = new float[capacity];
+        float[] extent = new float[3];
+        int lineCount = 0;
+        float lineTop = 0.0f;
+        float maxWidth = 0.0f;
+
+        BreakCursor breakCursor = new BreakCursor(this, charStart, charEnd,
+                                                  breakWidth, BreakMode.LINE, BreakStrategy.GREEDY);
+        int lineStart = charStart;
+
+        while (breakCursor.hasNext()) {
+            int lineEnd = breakCursor.next();
+            measureLineExtent(lineStart, lineEnd, extent);
+
+            if (lineCount == capacity) {
+                capacity *= 2;
+                lineStarts = Arrays.copyOf(lineStarts, capacity + 1);
+                lineTops = Arrays.copyOf(lineTops, capacity + 1);
+                lineAscents = Arrays.copyOf(lineAscents, capacity);
+            }
+
+            lineStarts[lineCount] = lineStart;
+            lineTops[lineCount] = lineTop;
+            lineAscents[lineCount] = extent[0];
+            lineCount++;
+
+            lineTop += extent[0] + extent[1];
+            maxWidth = Math.max(maxWidth, extent[2]);
+            lineStart = lineEnd;
+        }
+
+        lineStarts[lineCount] = lineStart;
+        lineTops[lineCount] = lineTop;
+
+        return new LineIndex(lineCount,
+                             Arrays.copyOf(lineStarts, lineCount + 1),
+                             Arrays.copyOf(lineTops, lineCount + 1),
+                             Arrays.copyOf(lineAscents, lineCount), maxWidth);
+    }
+
+    /**
+     * Creates a virtual frame of the lines in the provided range that fill the given width. Only
+     * the line index is computed upfront, while the lines themselves are composed when they become
+     * visible.
+     *
+     * @param charStart The index to first character of the frame in source text.
+     * @param charEnd The index after the last character of the frame in source text.
+     * @param frameWidth The width of the frame.
+     * @param textAlignment The horizontal text alignment of the lines in frame.
+     * @return The new virtual frame object.
+     *
+     * @throws NullPointerException if <code>textAlignment</code> is null.
+     * @throws IllegalArgumentException if <code>charStart</code> is negative, or
+     *         <code>charEnd</code> is greater than the length of source text, or
+     *         <code>charStart</code> is greater than or equal to <code>charEnd</code>, or
+     *         <code>frameWidth</code> is not positive.
+     */
+    public VirtualFrame createVirtualFrame(int charStart, int charEnd, float frameWidth,
+                                           TextAlignment textAlignment) {
+        if (textAlignment == null) {
+            throw new NullPointerException("Text alignment is null");
+        }
+        String rangeError = checkRange(charStart, charEnd);
+        if (rangeError != null) {
+            throw new IllegalArgumentException(rangeError);
+        }
+        if (!(frameWidth > 0.0f)) {
+            throw new IllegalArgumentException("Frame width is not positive");
+        }
+
+        float flushFactor;
+        switch (textAlignment) {
+        case RIGHT:
+            flushFactor = 1.0f;
+            break;
+
+        case CENTER:
+            flushFactor = 0.5f;
+            break;
+
+        default:
+            flushFactor = 0.0f;
+            break;
+        }
+
+        return new VirtualFrame(this, createLineIndex(charStart, charEnd, frameWidth),
+                                frameWidth, flushFactor);
+    }
+
     void dispose() {
-        for (BidiParagraph paragraph : mBidiParagraphs) {
-            paragraph.dispose();
+        for (int i = 0; i < mBidiParagraphs.size(); i++) {
+            mBidiParagraphs.get(i).dispose();
         }
+        disposeLazyResolution();
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.layout;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import com.mta.tehreer.graphics.Renderer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents a frame of text whose lines are composed on demand. Only the boundaries and vertical
+ * positions of the lines are kept, in primitive arrays, while the line objects are created for the
+ * lines falling in the visible area. It makes it possible to scroll through a very long text with
+ * memory bounded by the size of the viewport.
+ * <p>
+ * A virtual frame composes lines through the typesetter that created it, so it must not be used
+ * after the text of the typesetter is replaced.
+ *
+ * @see Typesetter#createVirtualFrame(int, int, float, TextAlignment)
+ */
+public class VirtualFrame {
+
+    private final Typesetter mTypesetter;
+    private final LineIndex mLineIndex;
+    private final float mFrameWidth;
+    private final float mFlushFactor;
+
+    private final Rect mClipBounds = new Rect();
+    private final ArrayList<ComposedLine> mVisibleLines = new ArrayList<>();
+    private int mVisibleStart;
+
+    VirtualFrame(Typesetter typesetter, LineIndex lineIndex, float frameWidth, float flushFactor) {
+        mTypesetter = typesetter;
+        mLineIndex = lineIndex;
+        mFrameWidth = frameWidth;
+        mFlushFactor = flushFactor;
+    }
+
+    /**
+     * Returns the index to the first character of this frame in source text.
+     *
+     * @return The index to the first character of this frame in source text.
+     */
+    public int getCharStart() {
+        return mLineIndex.getCharStart();
+    }
+
+    /**
+     * Returns the index after the last character of this frame in source text.
+     *
+     * @return The index after the last character of this frame in source text.
+     */
+    public int getCharEnd() {
+        return mLineIndex.getCharEnd();
+    }
+
+    /**
+     * Returns the index of the lines in this frame, which gives the boundaries and positions of
+     * the lines without composing them.
+     *
+     * @return The line index of this frame.
+     */
+    public LineIndex getLineIndex() {
+        return mLineIndex;
+    }
+
+    /**
+     * Returns the number of lines in this frame.
+     *
+     * @return The number of lines in this frame.
+     */
+    public int getLineCount() {
+        return mLineIndex.getLineCount();
+    }
+
+    /**
+     * Returns the width of the widest line in this frame.
+     *
+     * @return The width of the widest line.
+     */
+    public float getWidth() {
+        return mLineIndex.getWidth();
+    }
+
+    /**
+     * Returns the total height of the lines in this frame.
+     *
+     * @return The height of this frame.
+     */
+    public float getHeight() {
+        return mLineIndex.getHeight();
+    }
+
+    private ComposedLine composeLine(int lineIndex) {
+        ComposedLine composedLine = mTypesetter.createSimpleLine(mLineIndex.getLineCharStart(lineIndex),
+                                                                 mLineIndex.getLineCharEnd(lineIndex));
+        composedLine.setOriginX(composedLine.getFlushPenOffset(mFlushFactor, mFrameWidth));
+        composedLine.setOriginY(mLineIndex.getLineBaseline(lineIndex));
+
+        return composedLine;
+    }
+
+    /**
+     * Returns the specified line, composing it if it is not among the visible lines.
+     *
+     * @param lineIndex The index of the line.
+     * @return The line at the specified index.
+     *
+     * @throws IndexOutOfBoundsException if <code>lineIndex</code> is out of range.
+     */
+    public ComposedLine getLine(int lineIndex) {
+        int visibleIndex = lineIndex - mVisibleStart;
+        if (visibleIndex >= 0 && visibleIndex < mVisibleLines.size()) {
+            return mVisibleLines.get(visibleIndex);
+        }
+
+        return composeLine(lineIndex);
+    }
+
+    /**
+     * Returns an unmodifiable list of the lines intersecting the given vertical range. The lines
+     * shared with the previous call are reused and the rest of them are composed, while the lines
+     * that went out of the range are released.
+     *
+     * @param top The top of the visible range relative to the top of this frame.
+     * @param bottom The bottom of the visible range relative to the top of this frame.
+     * @return An unmodifiable list of the visible lines, in order.
+     */
+    public List<ComposedLine> getVisibleLines(float top, float bottom) {
+        if (bottom <= top || bottom <= 0.0f || top >= getHeight()) {
+            mVisibleLines.clear();
+            return Collections.emptyList();
+        }
+
+        int firstLine = mLineIndex.getLineForY(top);
+        int lastLine = mLineIndex.getLineForY(bottom);
+        if (lastLine > firstLine && mLineIndex.getLineTop(lastLine) >= bottom) {
+            lastLine--;
+        }
+
+        int oldStart = mVisibleStart;
+        int oldEnd = oldStart + mVisibleLines.size();
+
+        if (firstLine != oldStart || lastLine + 1 != oldEnd) {
+            ArrayList<ComposedLine> oldLines = new ArrayList<>(mVisibleLines);
+            mVisibleLines.clear();
+
+            for (int i = firstLine; i <= lastLine; i++) {
+                if (i >= oldStart && i < oldEnd) {
+                    mVisibleLines.add(oldLines.get(i - oldStart));
+                } else {
+                    mVisibleLines.add(composeLine(i));
+                }
+            }
+
+            mVisibleStart = firstLine;
+        }
+
+        return Collections.unmodifiableList(mVisibleLines);
+    }
+
+    /**
+     * Draws the lines of this frame falling in the clip bounds of the given <code>canvas</code>
+     * using the given <code>renderer</code>.
+     *
+     * @param renderer The renderer to use for drawing this frame.
+     * @param canvas The canvas onto which to draw this frame.
+     * @param x The x- position at which to draw this frame.
+     * @param y The y- position at which to draw this frame.
+     */
+    public void draw(Renderer renderer, Canvas canvas, float x, float y) {
+        if (!canvas.getClipBounds(mClipBounds)) {
+            return;
+        }
+
+        List<ComposedLine> visibleLines = getVisibleLines(mClipBounds.top - y, mClipBounds.bottom - y);
+        for (ComposedLine composedLine : visibleLines) {
+            composedLine.draw(renderer, canvas,
+                              x + composedLine.getOriginX(), y + composedLine.getOriginY());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualFrame{charStart=" + getCharStart()
+                + ", charEnd=" + getCharEnd()
+                + ", lineCount=" + getLineCount()
+                + ", width=" + getWidth()
+                + ", height=" + getHeight()
+                + "}";
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.widget;
+
+import com.mta.tehreer.layout.BreakMode;
+import com.mta.tehreer.layout.ComposedLine;
+import com.mta.tehreer.layout.TextAlignment;
+import com.mta.tehreer.layout.TruncationPlace;
+import com.mta.tehreer.layout.Typesetter;
+import com.mta.tehreer.layout.VirtualFrame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the lines of a label broken for a particular layout size. A layout does not depend upon
+ * the view, so it can be created on any thread.
+ */
+class LabelLayout {
+
+    final Typesetter typesetter;
+    final int layoutWidth;
+    final int layoutHeight;
+    final int maxLines;
+    final BreakMode truncationMode;
+    final TruncationPlace truncationPlace;
+    final List<ComposedLine> composedLines;
+    final VirtualFrame virtualFrame;
+    final boolean rtlText;
+    final int textWidth;
+    final int textHeight;
+
+    private LabelLayout(Typesetter typesetter, int layoutWidth, int layoutHeight, int maxLines,
+                        BreakMode truncationMode, TruncationPlace truncationPlace,
+                        List<ComposedLine> composedLines, VirtualFrame virtualFrame,
+                        boolean rtlText, int textWidth, int textHeight) {
+        this.typesetter = typesetter;
+        this.layoutWidth = layoutWidth;
+        this.layoutHeight = layoutHeight;
+        this.maxLines = maxLines;
+        this.truncationMode = truncationMode;
+        this.truncationPlace = truncationPlace;
+        this.composedLines = composedLines;
+        this.virtualFrame = virtualFrame;
+        this.rtlText = rtlText;
+        this.textWidth = textWidth;
+        this.textHeight = textHeight;
+    }
+
+    static float getLineHeight(ComposedLine composedLine) {
+        return composedLine.getAscent() + composedLine.getDescent();
+    }
+
+    /**
+     * Breaks the text of the typesetter into lines fitting in the layout size. With
+     * <code>allowVirtual</code> and an unbounded height, the lines are only measured and get
+     * composed later on when they are drawn.
+     */
+    static LabelLayout create(Typesetter typesetter, int layoutWidth, int layoutHeight, int maxLines,
+                              BreakMode truncationMode, TruncationPlace truncationPlace,
+                              boolean allowVirtual) {
+        int textLength = typesetter.getSpanned().length();
+
+        if (allowVirtual && layoutWidth > 0 && layoutHeight == Integer.MAX_VALUE && maxLines == 0) {
+            // Nothing gets truncated without a height limit, so lines are composed only when they
+            // become visible.
+            VirtualFrame virtualFrame = typesetter.createVirtualFrame(0, textLength, layoutWidth, TextAlignment.LEFT);
+            boolean rtlText = (virtualFrame.getLine(0).getParagraphLevel() & 1) == 1;
+
+            return new LabelLayout(typesetter, layoutWidth, layoutHeight, maxLines,
+                                   truncationMode, truncationPlace,
+                                   Collections.<ComposedLine>emptyList(), virtualFrame, rtlText,
+                                   (int) (virtualFrame.getWidth() + 1.0f),
+                                   (int) (virtualFrame.getHeight() + 1.0f));
+        }
+
+        ArrayList<ComposedLine> composedLines = new ArrayList<>();
+        int lineLimit = (maxLines == 0 ? Integer.MAX_VALUE : maxLines);
+
+        // Get boundary of first line.
+        int lineStart = 0;
+        int lineEnd = typesetter.suggestForwardBreak(lineStart, textLength, layoutWidth, BreakMode.LINE);
+
+        // Add first line even if layout height is smaller than its height.
+        ComposedLine composedLine = typesetter.createSimpleLine(lineStart, lineEnd);
+        boolean rtlText = (composedLine.getParagraphLevel() & 1) == 1;
+        composedLines.add(composedLine);
+
+        // Setup text width and height based on first line.
+        float textWidth = composedLine.getWidth();
+        float textHeight = getLineHeight(composedLine);
+
+        lineStart = lineEnd;
+
+        // Add remaining lines fitting in layout height.
+        while (lineStart < textLength) {
+            lineEnd = typesetter.suggestForwardBreak(lineStart, textLength, layoutWidth, BreakMode.LINE);
+            composedLine = typesetter.createSimpleLine(lineStart, lineEnd);
+
+            float lineWidth = composedLine.getWidth();
+            float lineHeight = getLineHeight(composedLine);
+
+            if ((textHeight + lineHeight) <= layoutHeight && composedLines.size() < lineLimit) {
+                textWidth = Math.max(textWidth, lineWidth);
+                textHeight += lineHeight;
+                composedLines.add(composedLine);
+
+                lineStart = lineEnd;
+            } else {
+                if (truncationPlace != null) {
+                    ComposedLine lastLine = composedLines.get(composedLines.size() - 1);
+
+                    // Replace the last line with truncated one.
+                    ComposedLine truncatedLine = typesetter.createTruncatedLine(lastLine.getCharStart(), textLength, layoutWidth, truncationMode, truncationPlace);
+                    composedLines.set(composedLines.size() - 1, truncatedLine);
+                }
+                break;
+            }
+        }
+
+        return new LabelLayout(typesetter, layoutWidth, layoutHeight, maxLines,
+                               truncationMode, truncationPlace,
+                               Collections.unmodifiableList(composedLines), null, rtlText,
+                               (int) (textWidth + 1.0f), (int) (textHeight + 1.0f));
+    }
+
+    boolean matches(Typesetter typesetter, int layoutWidth, int layoutHeight, int maxLines,
+                    BreakMode truncationMode, TruncationPlace truncationPlace) {
+        return this.typesetter == typesetter
+                && this.layoutWidth == layoutWidth && this.layoutHeight == layoutHeight
+                && this.maxLines == maxLines
+                && this.truncationMode == truncationMode
+                && this.truncationPlace == truncationPlace;
+    }
+
+    /**
+     * Tells whether this layout can be used for the given size. Besides an exact match, a layout
+     * created without a height limit is also usable for any height in which all of its lines fit,
+     * because breaking the text again would give the same lines.
+     */
+    boolean fits(Typesetter typesetter, int layoutWidth, int layoutHeight, int maxLines,
+                 BreakMode truncationMode, TruncationPlace truncationPlace) {
+        if (this.layoutHeight == Integer.MAX_VALUE && textHeight <= layoutHeight) {
+            layoutHeight = Integer.MAX_VALUE;
+        }
+
+        return matches(typesetter, layoutWidth, layoutHeight, maxLines, truncationMode, truncationPlace);
+    }
+}
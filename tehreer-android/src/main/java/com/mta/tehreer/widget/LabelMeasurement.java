@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.widget;
+
+import com.mta.tehreer.layout.BreakMode;
+import com.mta.tehreer.layout.TextMetrics;
+import com.mta.tehreer.layout.TruncationPlace;
+import com.mta.tehreer.layout.Typesetter;
+
+/**
+ * Holds the text size of a label for a particular layout size, measured without composing the
+ * lines. The size is the same as the one of a {@link LabelLayout} created for the layout size.
+ */
+class LabelMeasurement {
+
+    final Typesetter typesetter;
+    final int layoutWidth;
+    final int layoutHeight;
+    final int maxLines;
+    final BreakMode truncationMode;
+    final TruncationPlace truncationPlace;
+    final int textWidth;
+    final int textHeight;
+
+    private LabelMeasurement(Typesetter typesetter, int layoutWidth, int layoutHeight, int maxLines,
+                             BreakMode truncationMode, TruncationPlace truncationPlace,
+                             int textWidth, int textHeight) {
+        this.typesetter = typesetter;
+        this.layoutWidth = layoutWidth;
+        this.layoutHeight = layoutHeight;
+        this.maxLines = maxLines;
+        this.truncationMode = truncationMode;
+        this.truncationPlace = truncationPlace;
+        this.textWidth = textWidth;
+        this.textHeight = textHeight;
+    }
+
+    /**
+     * Measures the text of the typesetter for the layout size. Returns <code>null</code> if the
+     * text would be cut by the layout height, or truncated, as the size of such a layout depends
+     * upon the composed lines.
+     */
+    static LabelMeasurement measure(Typesetter typesetter, int layoutWidth, int layoutHeight, int maxLines,
+                                    BreakMode truncationMode, TruncationPlace truncationPlace) {
+        if (layoutWidth <= 0) {
+            return null;
+        }
+
+        int textLength = typesetter.getSpanned().length();
+        TextMetrics metrics = typesetter.measureText(0, textLength, layoutWidth, maxLines);
+
+        if (metrics.getHeight() > layoutHeight) {
+            return null;
+        }
+        if (metrics.getCharEnd() < textLength && truncationPlace != null) {
+            return null;
+        }
+
+        return new LabelMeasurement(typesetter, layoutWidth, layoutHeight, maxLines,
+                                    truncationMode, truncationPlace,
+                                    (int) (metrics.getWidth() + 1.0f),
+                                    (int) (metrics.getHeight() + 1.0f));
+    }
+
+    boolean matches(Typesetter typesetter, int layoutWidth, int layoutHeight, int maxLines,
+                    BreakMode truncationMode, TruncationPlace truncationPlace) {
+        return this.typesetter == typesetter
+                && this.layoutWidth == layoutWidth && this.layoutHeight == layoutHeight
+                && this.maxLines == maxLines
+                && this.truncationMode == truncationMode
+                && this.truncationPlace == truncationPlace;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 Muhammad Tayyab Akram
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mta.tehreer.widget;
+
+import com.mta.tehreer.graphics.Typeface;
+import com.mta.tehreer.layout.BreakMode;
+import com.mta.tehreer.layout.ComposedLine;
+import com.mta.tehreer.layout.TruncationPlace;
+import com.mta.tehreer.layout.Typesetter;
+
+import java.util.List;
+
+/**
+ * Represents the typeset text and lines of a label computed ahead of time for a particular width.
+ * A precomputed layout does not depend upon a view, so it can be created on a background thread,
+ * e.g. before binding an item of a list, and then handed to a label via
+ * {@link TLabel#setPrecomputedLayout(PrecomputedLayout)}. As long as the label is measured with
+ * the same width, it uses the precomputed lines without typesetting the text again.
+ * <p>
+ * The lines are not copied when the layout is handed to a label, so the label draws the same line
+ * objects that are returned by {@link #getLines()}.
+ * <p>
+ * The lines are computed without a height limit, so the layout is also used when the label is
+ * given a height in which all of its lines fit.
+ */
+public class PrecomputedLayout {
+
+    private final String mText;
+    private final Typeface mTypeface;
+    private final float mTypeSize;
+    private final LabelLayout mLayout;
+
+    /**
+     * Constructs a precomputed layout by typesetting the text and breaking it into lines.
+     *
+     * @param text The text to lay out.
+     * @param typeface The typeface to use.
+     * @param typeSize The type size to apply.
+     * @param layoutWidth The width available to the text, excluding the padding of the label.
+     * @param maxLines The maximum number of lines, or zero for no limit.
+     * @param truncationMode The truncation mode to use on the last line in case of overflow.
+     * @param truncationPlace The truncation place for the last line, or <code>null</code> to
+     *                        disable the truncation.
+     *
+     * @throws NullPointerException if <code>text</code> is null, or <code>typeface</code> is null,
+     *         or <code>truncationMode</code> is null.
+     * @throws IllegalArgumentException if <code>text</code> is empty, or <code>layoutWidth</code>
+     *         is negative, or <code>maxLines</code> is negative.
+     */
+    public PrecomputedLayout(String text, Typeface typeface, float typeSize, int layoutWidth,
+                             int maxLines, BreakMode truncationMode, TruncationPlace truncationPlace) {
+        if (text == null) {
+            throw new NullPointerException("Text is null");
+        }
+        if (typeface == null) {
+            throw new NullPointerException("Typeface is null");
+        }
+        if (truncationMode == null) {
+            throw new NullPointerException("Truncation mode is null");
+        }
+        if (text.length() == 0) {
+            throw new IllegalArgumentException("Text is empty");
+        }
+        if (layoutWidth < 0) {
+            throw new IllegalArgumentException("Layout width is negative");
+        }
+        if (maxLines < 0) {
+            throw new IllegalArgumentException("Max lines is negative");
+        }
+
+        typeSize = Math.max(0.0f, typeSize);
+        Typesetter typesetter = new Typesetter(text, typeface, typeSize);
+
+        mText = text;
+        mTypeface = typeface;
+        mTypeSize = typeSize;
+        mLayout = LabelLayout.create(typesetter, layoutWidth, Integer.MAX_VALUE, maxLines,
+                                     truncationMode, truncationPlace, false);
+    }
+
+    LabelLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * Returns the text of this layout.
+     *
+     * @return The text of this layout.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * Returns the typeface of this layout.
+     *
+     * @return The typeface of this layout.
+     */
+    public Typeface getTypeface() {
+        return mTypeface;
+    }
+
+    /**
+     * Returns the type size of this layout.
+     *
+     * @return The type size of this layout.
+     */
+    public float getTypeSize() {
+        return mTypeSize;
+    }
+
+    /**
+     * Returns the width for which this layout was computed.
+     *
+     * @return The layout width.
+     */
+    public int getLayoutWidth() {
+        return mLayout.layoutWidth;
+    }
+
+    /**
+     * Returns the maximum number of lines of this layout, or zero if there is no limit.
+     *
+     * @return The maximum number of lines.
+     */
+    public int getMaxLines() {
+        return mLayout.maxLines;
+    }
+
+    /**
+     * Returns the truncation mode of this layout.
+     *
+     * @return The truncation mode.
+     */
+    public BreakMode getTruncationMode() {
+        return mLayout.truncationMode;
+    }
+
+    /**
+     * Returns the truncation place of this layout, or <code>null</code> if truncation is disabled.
+     *
+     * @return The truncation place, or <code>null</code>.
+     */
+    public TruncationPlace getTruncationPlace() {
+        return mLayout.truncationPlace;
+    }
+
+    /**
+     * Returns the typesetter that was used to compute this layout.
+     *
+     * @return The typesetter of this layout.
+     */
+    public Typesetter getTypesetter() {
+        return mLayout.typesetter;
+    }
+
+    /**
+     * Returns an unmodifiable list of the lines of this layout. The lines are shared with the
+     * labels displaying this layout, and are not copied.
+     *
+     * @return The lines of this layout.
+     */
+    public List<ComposedLine> getLines() {
+        return mLayout.composedLines;
+    }
+
+    /**
+     * Returns the width occupied by the lines of this layout.
+     *
+     * @return The width of the text.
+     */
+    public int getTextWidth() {
+        return mLayout.textWidth;
+    }
+
+    /**
+     * Returns the height occupied by the lines of this layout.
+     *
+     * @return The height of the text.
+     */
+    public int getTextHeight() {
+        return mLayout.textHeight;
+    }
+}
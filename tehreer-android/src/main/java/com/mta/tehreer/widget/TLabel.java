@@ -20,6 +20,10 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Gravity;
@@ -29,18 +33,27 @@ import com.mta.tehreer.R;
 import com.mta.tehreer.graphics.Renderer;
 import com.mta.tehreer.graphics.Typeface;
 import com.mta.tehreer.graphics.TypefaceManager;
+import com.mta.tehreer.internal.util.CachedPicture;
 import com.mta.tehreer.layout.BreakMode;
 import com.mta.tehreer.layout.ComposedLine;
 import com.mta.tehreer.layout.TruncationPlace;
 import com.mta.tehreer.layout.Typesetter;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /**
  * Displays read-only text to the user.
  */
 public class TLabel extends View {
 
+    private static final String TAG = TLabel.class.getSimpleName();
+
+    private static final int MAX_READY_LAYOUTS = 4;
+    private static final int MAX_MEASUREMENTS = 4;
+
     private int mGravity = Gravity.TOP | Gravity.START;
     private int mMaxLines = 0;
 
@@ -50,15 +63,204 @@ public class TLabel extends View {
 
     private String mText = "";
     private Typesetter mTypesetter = null;
+    private LabelLayout mLayout = null;
+    private LabelMeasurement mMeasurement = null;
+    private final ArrayList<LabelMeasurement> mMeasurements = new ArrayList<>();
+    private final Rect mClipBounds = new Rect();
+
+    private boolean mPictureCachingEnabled = false;
+    private final CachedPicture mCachedPicture = new CachedPicture();
+    private LabelLayout mPictureLayout = null;
+    private float mPictureFlushFactor;
+    private float mPictureLeft;
+    private float mPictureTop;
+    private int mPictureWidth;
+    private int mPictureHeight;
+
+    private Executor mLayoutExecutor = null;
+    private Handler mHandler = null;
+    private TypesetterSource mTypesetterSource = null;
+    private volatile int mGeneration = 0;
+    private final ArrayList<LayoutTask> mLayoutTasks = new ArrayList<>();
+    private final ArrayList<LabelLayout> mReadyLayouts = new ArrayList<>();
+
+    private MetricsListener mMetricsListener = null;
+
+    /**
+     * Interface definition for callbacks reporting how long a Label took to typeset its text,
+     * break it into lines and draw them. The callbacks are always invoked on the main thread, even
+     * if the work was done by a layout executor.
+     *
+     * @see TLabel#setMetricsListener(MetricsListener)
+     */
+    public interface MetricsListener {
+
+        /**
+         * Called when the text of a Label has been typeset.
+         *
+         * @param label The Label whose text was typeset.
+         * @param durationNanos The time taken by the typesetting in nanoseconds.
+         */
+        void onTextTypeset(TLabel label, long durationNanos);
+
+        /**
+         * Called when the text of a Label has been broken into lines.
+         *
+         * @param label The Label whose lines were created.
+         * @param durationNanos The time taken by the line creation in nanoseconds.
+         */
+        void onLinesCreated(TLabel label, long durationNanos);
+
+        /**
+         * Called when the lines of a Label have been drawn.
+         *
+         * @param label The Label whose lines were drawn.
+         * @param durationNanos The time taken by the drawing in nanoseconds.
+         */
+        void onLinesDrawn(TLabel label, long durationNanos);
+    }
+
+    /**
+     * Creates the typesetter of a background layout on first use, so that the layout tasks of the
+     * same text share it.
+     */
+    private static class TypesetterSource {
+
+        private final String text;
+        private final Typeface typeface;
+        private final float typeSize;
+        private final boolean timed;
+        private Typesetter typesetter;
+        private long typesettingTime = -1;
+
+        TypesetterSource(Typesetter typesetter) {
+            this.text = null;
+            this.typeface = null;
+            this.typeSize = 0.0f;
+            this.timed = false;
+            this.typesetter = typesetter;
+        }
+
+        TypesetterSource(String text, Typeface typeface, float typeSize, boolean timed) {
+            this.text = text;
+            this.typeface = typeface;
+            this.typeSize = typeSize;
+            this.timed = timed;
+        }
+
+        synchronized Typesetter get() {
+            if (typesetter == null) {
+                long startTime = (timed ? System.nanoTime() : 0);
+                typesetter = new Typesetter(text, typeface, typeSize);
+                if (timed) {
+                    typesettingTime = System.nanoTime() - startTime;
+                }
+            }
 
-    private boolean mRtlText = false;
-    private int mTextWidth = 0;
-    private int mTextHeight = 0;
+            return typesetter;
+        }
 
-    private ArrayList<ComposedLine> mComposedLines = new ArrayList<>();
+        /**
+         * Returns the time taken to create the typesetter, or -1 if it is not known. The time is
+         * handed out only once, so that a single task reports it.
+         */
+        synchronized long takeTypesettingTime() {
+            long time = typesettingTime;
+            typesettingTime = -1;
 
-    private static float getLineHeight(ComposedLine composedLine) {
-        return composedLine.getAscent() + composedLine.getDescent();
+            return time;
+        }
+    }
+
+    private class LayoutTask implements Runnable {
+
+        final FutureTask<Void> future = new FutureTask<>(this, null);
+        final MetricsListener listener = mMetricsListener;
+        final TypesetterSource source;
+        final int generation;
+        final int layoutWidth;
+        final int layoutHeight;
+        final int maxLines;
+        final BreakMode truncationMode;
+        final TruncationPlace truncationPlace;
+
+        LayoutTask(TypesetterSource source, int generation,
+                   int layoutWidth, int layoutHeight, int maxLines,
+                   BreakMode truncationMode, TruncationPlace truncationPlace) {
+            this.source = source;
+            this.generation = generation;
+            this.layoutWidth = layoutWidth;
+            this.layoutHeight = layoutHeight;
+            this.maxLines = maxLines;
+            this.truncationMode = truncationMode;
+            this.truncationPlace = truncationPlace;
+        }
+
+        @Override
+        public void run() {
+            LabelLayout layout = null;
+            RuntimeException failure = null;
+            long typesettingTime = -1;
+            long linesTime = -1;
+
+            try {
+                if (generation == mGeneration) {
+                    Typesetter typesetter = source.get();
+                    typesettingTime = source.takeTypesettingTime();
+
+                    if (generation == mGeneration) {
+                        // Layouts of the same typesetter may be created by several workers at once.
+                        synchronized (typesetter) {
+                            long startTime = (listener != null ? System.nanoTime() : 0);
+                            layout = LabelLayout.create(typesetter, layoutWidth, layoutHeight, maxLines,
+                                                        truncationMode, truncationPlace, false);
+                            if (listener != null) {
+                                linesTime = System.nanoTime() - startTime;
+                            }
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+
+            final LabelLayout readyLayout = layout;
+            final RuntimeException readyFailure = failure;
+            final long readyTypesettingTime = typesettingTime;
+            final long readyLinesTime = linesTime;
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mLayoutTasks.remove(LayoutTask.this);
+
+                    // An exception thrown here would crash the app from an unrelated message, so the
+                    // failure is logged and the previous layout keeps being shown.
+                    if (readyFailure != null && generation == mGeneration) {
+                        Log.e(TAG, "Failed to lay out the text in background", readyFailure);
+                    }
+                    if (listener != null && generation == mGeneration) {
+                        if (readyTypesettingTime >= 0) {
+                            listener.onTextTypeset(TLabel.this, readyTypesettingTime);
+                        }
+                        if (readyLinesTime >= 0) {
+                            listener.onLinesCreated(TLabel.this, readyLinesTime);
+                        }
+                    }
+                    if (readyLayout != null) {
+                        installLayout(generation, readyLayout);
+                    }
+                }
+            });
+        }
+
+        boolean matches(int layoutWidth, int layoutHeight, int maxLines,
+                        BreakMode truncationMode, TruncationPlace truncationPlace) {
+            return this.layoutWidth == layoutWidth && this.layoutHeight == layoutHeight
+                    && this.maxLines == maxLines
+                    && this.truncationMode == truncationMode
+                    && this.truncationPlace == truncationPlace;
+        }
     }
 
     public TLabel(Context context) {
@@ -149,13 +351,24 @@ public class TLabel extends View {
                             : heightSize - verticalPadding);
         updateLines(layoutWidth, layoutHeight);
 
+        int textWidth = 0;
+        int textHeight = 0;
+
+        if (mMeasurement != null) {
+            textWidth = mMeasurement.textWidth;
+            textHeight = mMeasurement.textHeight;
+        } else if (mLayout != null) {
+            textWidth = mLayout.textWidth;
+            textHeight = mLayout.textHeight;
+        }
+
         int actualWidth;
         int actualHeight;
 
         if (widthMode == MeasureSpec.EXACTLY) {
             actualWidth = widthSize;
         } else {
-            actualWidth = horizontalPadding + mTextWidth;
+            actualWidth = horizontalPadding + textWidth;
 
             if (widthMode == MeasureSpec.AT_MOST) {
                 actualWidth = Math.min(widthSize, actualWidth);
@@ -165,7 +378,7 @@ public class TLabel extends View {
         if (heightMode == MeasureSpec.EXACTLY) {
             actualHeight = heightSize;
         } else {
-            actualHeight = verticalPadding + mTextHeight;
+            actualHeight = verticalPadding + textHeight;
 
             if (heightMode == MeasureSpec.AT_MOST) {
                 actualHeight = Math.min(heightSize, actualHeight);
@@ -179,7 +392,19 @@ public class TLabel extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        long t1 = System.nanoTime();
+        if (mMeasurement != null) {
+            // Compose the lines for the size that was measured last.
+            createLines(mMeasurement.layoutWidth, mMeasurement.layoutHeight);
+            mMeasurement = null;
+        }
+
+        LabelLayout layout = mLayout;
+        if (layout == null) {
+            return;
+        }
+
+        MetricsListener listener = mMetricsListener;
+        long startTime = (listener != null ? System.nanoTime() : 0);
 
         int paddingLeft = getPaddingLeft();
         int paddingTop = getPaddingTop();
@@ -188,6 +413,9 @@ public class TLabel extends View {
         int unpaddedWidth = getWidth() - (paddingLeft + paddingRight);
         int unpaddedHeight = getHeight() - (paddingTop + paddingBottom);
         int visibleBottom = paddingTop + unpaddedHeight;
+        boolean rtlText = layout.rtlText;
+        int textWidth = layout.textWidth;
+        int textHeight = layout.textHeight;
 
         float penLeft = paddingLeft;
         float penTop = paddingTop;
@@ -199,36 +427,93 @@ public class TLabel extends View {
 
         // Resolve relative layout direction.
         if (relativeGravity == Gravity.START) {
-            horizontalGravity = !mRtlText ? Gravity.LEFT : Gravity.RIGHT;
+            horizontalGravity = !rtlText ? Gravity.LEFT : Gravity.RIGHT;
         } else if (relativeGravity == Gravity.END) {
-            horizontalGravity = !mRtlText ? Gravity.RIGHT : Gravity.LEFT;
+            horizontalGravity = !rtlText ? Gravity.RIGHT : Gravity.LEFT;
         }
 
         // Resolve initial pen left and flush factor.
         if (horizontalGravity == Gravity.RIGHT) {
-            penLeft += unpaddedWidth - mTextWidth;
+            penLeft += unpaddedWidth - textWidth;
             flushFactor = 1.0f;
         } else if (horizontalGravity != Gravity.LEFT) {
-            penLeft += (unpaddedWidth - mTextWidth) / 2.0f;
+            penLeft += (unpaddedWidth - textWidth) / 2.0f;
             flushFactor = 0.5f;
         }
 
         // Resolve initial pen top.
         if (verticalGravity == Gravity.BOTTOM) {
-            penTop += unpaddedHeight - mTextHeight;
+            penTop += unpaddedHeight - textHeight;
         } else if (verticalGravity != Gravity.TOP) {
-            penTop += (unpaddedHeight - mTextHeight) / 2.0f;
+            penTop += (unpaddedHeight - textHeight) / 2.0f;
         }
 
         canvas.save();
 
-        for (ComposedLine composedLine : mComposedLines) {
-            float lineHeight = getLineHeight(composedLine);
+        if (layout.virtualFrame != null) {
+            // Compose and draw only the lines intersecting the clip, e.g. of a scrolling parent.
+            float clipTop = paddingTop;
+            float clipBottom = visibleBottom;
+            if (canvas.getClipBounds(mClipBounds)) {
+                clipTop = Math.max(clipTop, mClipBounds.top);
+                clipBottom = Math.min(clipBottom, mClipBounds.bottom);
+            }
+
+            List<ComposedLine> visibleLines = layout.virtualFrame.getVisibleLines(clipTop - penTop, clipBottom - penTop);
+            for (ComposedLine composedLine : visibleLines) {
+                float lineX = penLeft + composedLine.getFlushPenOffset(flushFactor, textWidth);
+                float lineY = penTop + composedLine.getOriginY();
+
+                composedLine.draw(mRenderer, canvas, lineX, lineY);
+            }
+        }
+
+        if (mPictureCachingEnabled && layout.virtualFrame == null && CachedPicture.canReplay(canvas)) {
+            int viewWidth = getWidth();
+            int viewHeight = getHeight();
+
+            // Record over the whole view, so that the glyphs overshooting the lines and the shadow
+            // are kept as they would be when drawn directly.
+            if (!mCachedPicture.isValid(mRenderer) || mPictureLayout != layout
+                    || mPictureFlushFactor != flushFactor
+                    || mPictureLeft != penLeft || mPictureTop != penTop
+                    || mPictureWidth != viewWidth || mPictureHeight != viewHeight) {
+                RectF pictureBounds = new RectF(0.0f, 0.0f, viewWidth, viewHeight);
+                Canvas recordingCanvas = mCachedPicture.beginRecording(mRenderer, pictureBounds);
+                drawLines(recordingCanvas, layout, penLeft, penTop, flushFactor, paddingTop, visibleBottom);
+                mCachedPicture.endRecording();
+
+                mPictureLayout = layout;
+                mPictureFlushFactor = flushFactor;
+                mPictureLeft = penLeft;
+                mPictureTop = penTop;
+                mPictureWidth = viewWidth;
+                mPictureHeight = viewHeight;
+            }
+
+            mCachedPicture.draw(canvas);
+        } else {
+            drawLines(canvas, layout, penLeft, penTop, flushFactor, paddingTop, visibleBottom);
+        }
+
+        canvas.restore();
+
+        if (listener != null) {
+            listener.onLinesDrawn(this, System.nanoTime() - startTime);
+        }
+    }
+
+    private void drawLines(Canvas canvas, LabelLayout layout, float penLeft, float penTop,
+                           float flushFactor, float visibleTop, float visibleBottom) {
+        int textWidth = layout.textWidth;
+
+        for (ComposedLine composedLine : layout.composedLines) {
+            float lineHeight = LabelLayout.getLineHeight(composedLine);
             float penBottom = penTop + lineHeight;
 
             if (penTop < visibleBottom) {
-                if (penBottom > paddingTop) {
-                    float lineX = penLeft + composedLine.getFlushPenOffset(flushFactor, mTextWidth);
+                if (penBottom > visibleTop) {
+                    float lineX = penLeft + composedLine.getFlushPenOffset(flushFactor, textWidth);
                     float lineY = penTop + composedLine.getAscent();
 
                     composedLine.draw(mRenderer, canvas, lineX, lineY);
@@ -239,79 +524,144 @@ public class TLabel extends View {
 
             penTop = penBottom;
         }
-
-        canvas.restore();
-
-        long t2 = System.nanoTime();
-        Log.i("Tehreer", "Time taken to render label: " + ((t2 - t1) / Math.pow(10, 6)));
     }
 
     private void updateLines(int layoutWidth, int layoutHeight) {
-        mRtlText = false;
-        mComposedLines.clear();
+        if (mLayoutExecutor != null) {
+            requestBackgroundLayout(layoutWidth, layoutHeight);
+            return;
+        }
 
-        if (mTypesetter != null) {
-            long t1 = System.nanoTime();
+        mMeasurement = null;
+
+        if (mTypesetter == null) {
+            mLayout = null;
+        } else if (mLayout == null || !mLayout.fits(mTypesetter, layoutWidth, layoutHeight,
+                                                    mMaxLines, mTruncationMode, mTruncationPlace)) {
+            // Measure passes may come one after another with different specs, so only the text
+            // size is computed here and the lines are composed when drawn.
+            mMeasurement = findMeasurement(layoutWidth, layoutHeight);
+            if (mMeasurement != null) {
+                return;
+            }
 
-            int textLength = mTypesetter.getSpanned().length();
-            int maxLines = (mMaxLines == 0 ? Integer.MAX_VALUE : mMaxLines);
+            createLines(layoutWidth, layoutHeight);
+        }
+    }
 
-            // Get boundary of first line.
-            int lineStart = 0;
-            int lineEnd = mTypesetter.suggestForwardBreak(lineStart, textLength, layoutWidth, BreakMode.LINE);
+    private void createLines(int layoutWidth, int layoutHeight) {
+        MetricsListener listener = mMetricsListener;
+        long startTime = (listener != null ? System.nanoTime() : 0);
 
-            // Add first line even if layout height is smaller than its height.
-            ComposedLine composedLine = mTypesetter.createSimpleLine(lineStart, lineEnd);
-            mRtlText = (composedLine.getParagraphLevel() & 1) == 1;
-            mComposedLines.add(composedLine);
+        mLayout = LabelLayout.create(mTypesetter, layoutWidth, layoutHeight, mMaxLines,
+                                     mTruncationMode, mTruncationPlace, true);
 
-            // Setup text width and height based on first line.
-            float textWidth = composedLine.getWidth();
-            float textHeight = getLineHeight(composedLine);
+        if (listener != null) {
+            listener.onLinesCreated(this, System.nanoTime() - startTime);
+        }
+    }
 
-            lineStart = lineEnd;
+    private LabelMeasurement findMeasurement(int layoutWidth, int layoutHeight) {
+        for (LabelMeasurement measurement : mMeasurements) {
+            if (measurement.matches(mTypesetter, layoutWidth, layoutHeight,
+                                    mMaxLines, mTruncationMode, mTruncationPlace)) {
+                return measurement;
+            }
+        }
 
-            // Add remaining lines fitting in layout height.
-            while (lineStart < textLength) {
-                lineEnd = mTypesetter.suggestForwardBreak(lineStart, textLength, layoutWidth, BreakMode.LINE);
-                composedLine = mTypesetter.createSimpleLine(lineStart, lineEnd);
+        LabelMeasurement measurement = LabelMeasurement.measure(mTypesetter, layoutWidth, layoutHeight,
+                                                                mMaxLines, mTruncationMode, mTruncationPlace);
+        if (measurement != null) {
+            mMeasurements.add(measurement);
+            if (mMeasurements.size() > MAX_MEASUREMENTS) {
+                mMeasurements.remove(0);
+            }
+        }
 
-                float lineWidth = composedLine.getWidth();
-                float lineHeight = getLineHeight(composedLine);
+        return measurement;
+    }
 
-                if ((textHeight + lineHeight) <= layoutHeight && mComposedLines.size() < maxLines) {
-                    textWidth = Math.max(textWidth, lineWidth);
-                    textHeight += lineHeight;
-                    mComposedLines.add(composedLine);
+    private void requestBackgroundLayout(int layoutWidth, int layoutHeight) {
+        if (mTypesetterSource == null) {
+            mLayout = null;
+            return;
+        }
 
-                    lineStart = lineEnd;
-                } else {
-                    if (mTruncationPlace != null) {
-                        ComposedLine lastLine = mComposedLines.get(mComposedLines.size() - 1);
+        for (LabelLayout layout : mReadyLayouts) {
+            if (layout.fits(layout.typesetter, layoutWidth, layoutHeight,
+                            mMaxLines, mTruncationMode, mTruncationPlace)) {
+                mLayout = layout;
+                return;
+            }
+        }
 
-                        // Replace the last line with truncated one.
-                        ComposedLine truncatedLine = mTypesetter.createTruncatedLine(lastLine.getCharStart(), textLength, layoutWidth, mTruncationMode, mTruncationPlace);
-                        mComposedLines.set(mComposedLines.size() - 1, truncatedLine);
-                    }
-                    break;
-                }
+        // Keep showing the previous layout until the requested one is ready.
+        for (LayoutTask task : mLayoutTasks) {
+            if (task.matches(layoutWidth, layoutHeight, mMaxLines, mTruncationMode, mTruncationPlace)) {
+                return;
             }
+        }
+
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+
+        LayoutTask task = new LayoutTask(mTypesetterSource, mGeneration, layoutWidth, layoutHeight,
+                                         mMaxLines, mTruncationMode, mTruncationPlace);
+        mLayoutTasks.add(task);
+        mLayoutExecutor.execute(task.future);
+    }
+
+    private void installLayout(int generation, LabelLayout layout) {
+        if (generation != mGeneration) {
+            return;
+        }
+
+        mTypesetter = layout.typesetter;
+        mReadyLayouts.add(layout);
+        if (mReadyLayouts.size() > MAX_READY_LAYOUTS) {
+            mReadyLayouts.remove(0);
+        }
+
+        requestLayout();
+        invalidate();
+    }
 
-            mTextWidth = (int) (textWidth + 1.0f);
-            mTextHeight = (int) (textHeight + 1.0f);
+    private void discardLayoutTasks() {
+        // Tasks of an old generation give up as soon as they notice it.
+        mGeneration++;
 
-            long t2 = System.nanoTime();
-            Log.i("Tehreer", "Time taken to create lines: " + ((t2 - t1) / Math.pow(10, 6)));
+        for (LayoutTask task : mLayoutTasks) {
+            task.future.cancel(false);
         }
+        mLayoutTasks.clear();
+        mReadyLayouts.clear();
+        mMeasurements.clear();
+        mMeasurement = null;
     }
 
     private void updateTypesetter() {
         if (mText != null) {
             mTypesetter = null;
+            mTypesetterSource = null;
+            discardLayoutTasks();
 
             Typeface typeface = mRenderer.getTypeface();
             if (typeface != null && mText.length() > 0) {
-                mTypesetter = new Typesetter(mText, typeface, mRenderer.getTypeSize());
+                MetricsListener listener = mMetricsListener;
+
+                if (mLayoutExecutor == null) {
+                    long startTime = (listener != null ? System.nanoTime() : 0);
+                    mTypesetter = new Typesetter(mText, typeface, mRenderer.getTypeSize());
+                    if (listener != null) {
+                        listener.onTextTypeset(this, System.nanoTime() - startTime);
+                    }
+                } else {
+                    mTypesetterSource = new TypesetterSource(mText, typeface, mRenderer.getTypeSize(),
+                                                             listener != null);
+                }
+            } else {
+                mLayout = null;
             }
 
             requestLayout();
@@ -319,6 +669,101 @@ public class TLabel extends View {
         }
     }
 
+    /**
+     * Returns the executor on which the text of this Label is typeset and broken into lines, or
+     * <code>null</code> if it is done on the main thread. The default value is <code>null</code>.
+     *
+     * @return The layout executor of this Label, or <code>null</code>.
+     */
+    public Executor getLayoutExecutor() {
+        return mLayoutExecutor;
+    }
+
+    /**
+     * Sets the executor on which the text of this Label should be typeset and broken into lines.
+     * <p>
+     * With an executor in place, changing the text or its attributes does not block the main
+     * thread. The Label keeps showing its previous layout, or nothing at all, until the new one is
+     * ready, and then lays itself out again. The pending work for an outdated text is cancelled, so
+     * quickly rebinding a recycled Label only pays for the last text.
+     * <p>
+     * A typesetter given via {@link #setTypesetter(Typesetter)} is used by the executor threads, so
+     * it must not be used elsewhere at the same time. If the text fails to be laid out in the
+     * background, the failure is logged and the Label keeps showing its previous layout.
+     *
+     * @param executor The executor to use, or <code>null</code> to lay out the text on the main
+     *                 thread.
+     */
+    public void setLayoutExecutor(Executor executor) {
+        mLayoutExecutor = executor;
+        discardLayoutTasks();
+
+        if (mTypesetter != null) {
+            mTypesetterSource = new TypesetterSource(mTypesetter);
+        } else if (mText != null) {
+            updateTypesetter();
+            return;
+        }
+
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Returns the listener receiving the typesetting, line creation and drawing times of this
+     * Label, or <code>null</code> if none is set. The default value is <code>null</code>.
+     *
+     * @return The metrics listener of this Label, or <code>null</code>.
+     */
+    public MetricsListener getMetricsListener() {
+        return mMetricsListener;
+    }
+
+    /**
+     * Sets a listener to receive the typesetting, line creation and drawing times of this Label,
+     * e.g. to collect their percentiles in production. Nothing is timed without a listener.
+     * <p>
+     * The work already submitted to a layout executor is reported to the listener that was set at
+     * the time of its submission.
+     *
+     * @param listener The listener to set, or <code>null</code> to stop timing.
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        mMetricsListener = listener;
+    }
+
+    /**
+     * Returns whether the drawing of this Label is recorded into a picture and replayed until its
+     * lines or text styles change. The default value is <code>false</code>.
+     *
+     * @return <code>true</code> if picture caching is enabled, <code>false</code> otherwise.
+     */
+    public boolean isPictureCachingEnabled() {
+        return mPictureCachingEnabled;
+    }
+
+    /**
+     * Enables or disables recording the drawing of this Label into a picture. When enabled, the
+     * lines are drawn glyph by glyph only once, and redrawing the Label, e.g. because an ancestor
+     * was invalidated, replays the recorded picture. The picture is recorded again whenever the
+     * lines, their placement or the text styles change.
+     * <p>
+     * A very long text laid out for an unbounded height is always drawn directly, as only its
+     * visible lines are composed. So is any text on a hardware accelerated canvas before Android Q,
+     * which cannot replay the recorded glyphs.
+     *
+     * @param enabled <code>true</code> to enable picture caching, <code>false</code> to disable it.
+     */
+    public void setPictureCachingEnabled(boolean enabled) {
+        mPictureCachingEnabled = enabled;
+        if (!enabled) {
+            mCachedPicture.clear();
+            mPictureLayout = null;
+        }
+
+        invalidate();
+    }
+
     /**
      * Returns the horizontal and vertical alignment of this Label.
      *
@@ -346,6 +791,46 @@ public class TLabel extends View {
     public void setTypesetter(Typesetter typesetter) {
         mText = null;
         mTypesetter = typesetter;
+        mTypesetterSource = (typesetter != null ? new TypesetterSource(typesetter) : null);
+        discardLayoutTasks();
+        if (typesetter == null) {
+            mLayout = null;
+        }
+
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Displays a layout that was computed ahead of time, possibly on a background thread. The
+     * text, typeface, text size, maximum lines and truncation settings of this Label are replaced
+     * with the ones of the layout. If this Label is measured with the width of the layout, its
+     * lines are drawn as they are, without typesetting the text again.
+     *
+     * @param layout The precomputed layout to display.
+     *
+     * @throws NullPointerException if <code>layout</code> is null.
+     */
+    public void setPrecomputedLayout(PrecomputedLayout layout) {
+        if (layout == null) {
+            throw new NullPointerException("Layout is null");
+        }
+
+        LabelLayout labelLayout = layout.getLayout();
+        Typesetter typesetter = labelLayout.typesetter;
+
+        mText = layout.getText();
+        mRenderer.setTypeface(layout.getTypeface());
+        mRenderer.setTypeSize(layout.getTypeSize());
+        mMaxLines = labelLayout.maxLines;
+        mTruncationMode = labelLayout.truncationMode;
+        mTruncationPlace = labelLayout.truncationPlace;
+
+        discardLayoutTasks();
+        mTypesetter = typesetter;
+        mTypesetterSource = new TypesetterSource(typesetter);
+        mLayout = labelLayout;
+        mReadyLayouts.add(labelLayout);
 
         requestLayout();
         invalidate();
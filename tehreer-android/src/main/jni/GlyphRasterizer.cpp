@@ -25,7 +25,10 @@ extern "C" {
 #include FT_TYPES_H
 }
 
+#include <cstdint>
+#include <cstring>
 #include <jni.h>
+#include <vector>
 
 #include "FreeType.h"
 #include "JavaBridge.h"
@@ -34,23 +37,46 @@ extern "C" {
 
 using namespace Tehreer;
 
-GlyphRasterizer::GlyphRasterizer(Typeface &typeface, FT_F26Dot6 pixelWidth, FT_F26Dot6 pixelHeight, FT_Matrix transform)
+GlyphRasterizer::GlyphRasterizer(Typeface &typeface, FT_F26Dot6 pixelWidth, FT_F26Dot6 pixelHeight, FT_Matrix transform, bool ownFace)
     : m_typeface(typeface)
+    , m_ftFace(nullptr)
+    , m_ftStroker(nullptr)
     , m_size(nullptr)
     , m_transform(transform)
 {
-    m_typeface.lock();
+    if (ownFace) {
+        m_ftFace = m_typeface.openFace();
+    }
 
-    FT_Face baseFace = m_typeface.ftFace();
-    FT_New_Size(baseFace, &m_size);
-    FT_Activate_Size(m_size);
-    FT_Set_Char_Size(baseFace, pixelWidth, pixelHeight, 0, 0);
+    if (m_ftFace) {
+        /*
+         * A private face is not shared with any other rasterizer, so its size and transform can be
+         * set once and for all.
+         */
+        FT_Set_Char_Size(m_ftFace, pixelWidth, pixelHeight, 0, 0);
+        FT_Set_Transform(m_ftFace, &m_transform, nullptr);
+    } else {
+        m_typeface.lock();
+
+        FT_Face baseFace = m_typeface.ftFace();
+        FT_New_Size(baseFace, &m_size);
+        FT_Activate_Size(m_size);
+        FT_Set_Char_Size(baseFace, pixelWidth, pixelHeight, 0, 0);
 
-    m_typeface.unlock();
+        m_typeface.unlock();
+    }
 }
 
 GlyphRasterizer::~GlyphRasterizer()
 {
+    if (m_ftStroker) {
+        FT_Stroker_Done(m_ftStroker);
+    }
+
+    if (m_ftFace) {
+        m_typeface.closeFace(m_ftFace);
+    }
+
     if (m_size) {
         /*
          * NOTE:
@@ -64,10 +90,48 @@ GlyphRasterizer::~GlyphRasterizer()
     }
 }
 
-void GlyphRasterizer::unsafeActivate(FT_Face ftFace)
+void GlyphRasterizer::lock()
+{
+    if (m_ftFace) {
+        m_mutex.lock();
+    } else {
+        m_typeface.lock();
+    }
+}
+
+void GlyphRasterizer::unlock()
+{
+    if (m_ftFace) {
+        m_mutex.unlock();
+    } else {
+        m_typeface.unlock();
+    }
+}
+
+FT_Face GlyphRasterizer::unsafeActivate()
 {
+    if (m_ftFace) {
+        return m_ftFace;
+    }
+
+    FT_Face baseFace = m_typeface.ftFace();
     FT_Activate_Size(m_size);
-    FT_Set_Transform(ftFace, &m_transform, nullptr);
+    FT_Set_Transform(baseFace, &m_transform, nullptr);
+
+    return baseFace;
+}
+
+FT_Stroker GlyphRasterizer::unsafeStroker()
+{
+    if (m_ftFace) {
+        if (!m_ftStroker) {
+            FT_Stroker_New(FreeType::library(), &m_ftStroker);
+        }
+
+        return m_ftStroker;
+    }
+
+    return m_typeface.ftStroker();
 }
 
 jobject GlyphRasterizer::unsafeCreateBitmap(const JavaBridge &bridge, const FT_Bitmap *bitmap)
@@ -100,10 +164,9 @@ void GlyphRasterizer::loadBitmap(const JavaBridge &bridge, jobject glyph)
     jint leftSideBearing = 0;
     jint topSideBearing = 0;
 
-    m_typeface.lock();
+    lock();
 
-    FT_Face baseFace = m_typeface.ftFace();
-    unsafeActivate(baseFace);
+    FT_Face baseFace = unsafeActivate();
 
     FT_Error error = FT_Load_Glyph(baseFace, glyphID, FT_LOAD_RENDER);
     if (error == FT_Err_Ok) {
@@ -116,19 +179,78 @@ void GlyphRasterizer::loadBitmap(const JavaBridge &bridge, jobject glyph)
         }
     }
 
-    m_typeface.unlock();
+    unlock();
 
     bridge.Glyph_ownBitmap(glyph, glyphBitmap, leftSideBearing, topSideBearing);
 }
 
+void GlyphRasterizer::loadBitmaps(const jint *glyphIDs, size_t count, jint *metrics, std::vector<uint8_t> &pixels)
+{
+    /*
+     * NOTE:
+     *      The metrics of each glyph are written as four consecutive values, i.e. left side
+     *      bearing, top side bearing, width and height. The pixels of nonempty glyphs are appended
+     *      to the vector one after the other without any row padding.
+     */
+
+    lock();
+
+    FT_Face baseFace = unsafeActivate();
+
+    for (size_t i = 0; i < count; i++) {
+        FT_UInt glyphID = static_cast<FT_UInt>(glyphIDs[i]);
+        jint *glyphMetrics = &metrics[i * 4];
+        glyphMetrics[0] = 0;
+        glyphMetrics[1] = 0;
+        glyphMetrics[2] = 0;
+        glyphMetrics[3] = 0;
+
+        FT_Error error = FT_Load_Glyph(baseFace, glyphID, FT_LOAD_RENDER);
+        if (error != FT_Err_Ok) {
+            continue;
+        }
+
+        FT_GlyphSlot glyphSlot = baseFace->glyph;
+        FT_Bitmap *bitmap = &glyphSlot->bitmap;
+
+        if (bitmap->pixel_mode != FT_PIXEL_MODE_GRAY) {
+            LOGW("Unsupported pixel mode of freetype bitmap");
+            continue;
+        }
+
+        size_t width = bitmap->width;
+        size_t rows = bitmap->rows;
+
+        if (width > 0 && rows > 0) {
+            size_t offset = pixels.size();
+            pixels.resize(offset + width * rows);
+
+            uint8_t *target = &pixels[offset];
+            const uint8_t *source = bitmap->buffer;
+
+            for (size_t r = 0; r < rows; r++) {
+                memcpy(target, source, width);
+                target += width;
+                source += bitmap->pitch;
+            }
+
+            glyphMetrics[0] = glyphSlot->bitmap_left;
+            glyphMetrics[1] = glyphSlot->bitmap_top;
+            glyphMetrics[2] = static_cast<jint>(width);
+            glyphMetrics[3] = static_cast<jint>(rows);
+        }
+    }
+
+    unlock();
+}
+
 void GlyphRasterizer::loadOutline(const JavaBridge &bridge, jobject glyph)
 {
     FT_UInt glyphID = static_cast<FT_UInt>(bridge.Glyph_getGlyphID(glyph));
 
-    m_typeface.lock();
+    lock();
 
-    FT_Face baseFace = m_typeface.ftFace();
-    unsafeActivate(baseFace);
+    FT_Face baseFace = unsafeActivate();
 
     FT_Glyph outline = nullptr;
     FT_Error error = FT_Load_Glyph(baseFace, glyphID, FT_LOAD_NO_BITMAP);
@@ -136,7 +258,7 @@ void GlyphRasterizer::loadOutline(const JavaBridge &bridge, jobject glyph)
         FT_Get_Glyph(baseFace->glyph, &outline);
     }
 
-    m_typeface.unlock();
+    unlock();
 
     bridge.Glyph_ownOutline(glyph, outline ? reinterpret_cast<jlong>(outline) : 0);
 }
@@ -145,14 +267,13 @@ void GlyphRasterizer::loadPath(const JavaBridge &bridge, jobject glyph)
 {
     FT_UInt glyphID = static_cast<FT_UInt>(bridge.Glyph_getGlyphID(glyph));
 
-    m_typeface.lock();
+    lock();
 
-    FT_Face baseFace = m_typeface.ftFace();
-    unsafeActivate(baseFace);
+    FT_Face baseFace = unsafeActivate();
 
-    jobject glyphPath = m_typeface.getGlyphPathNoLock(bridge, glyphID);
+    jobject glyphPath = Typeface::getGlyphPathNoLock(bridge, baseFace, glyphID);
 
-    m_typeface.unlock();
+    unlock();
 
     bridge.Glyph_ownPath(glyph, glyphPath);
 }
@@ -164,13 +285,13 @@ jobject GlyphRasterizer::strokeGlyph(const JavaBridge &bridge, jobject glyph, FT
     FT_Glyph baseGlyph = reinterpret_cast<FT_Glyph>(bridge.Glyph_getNativeOutline(glyph));
 
     if (baseGlyph) {
-        m_typeface.lock();
+        lock();
 
-        FT_Stroker stroker = m_typeface.ftStroker();
+        FT_Stroker stroker = unsafeStroker();
         FT_Stroker_Set(stroker, lineRadius, lineCap, lineJoin, miterLimit);
         FT_Error error = FT_Glyph_Stroke(&baseGlyph, stroker, 0);
 
-        m_typeface.unlock();
+        unlock();
 
         if (error == FT_Err_Ok) {
             FT_Glyph_To_Bitmap(&baseGlyph, FT_RENDER_MODE_NORMAL, nullptr, 1);
@@ -200,7 +321,7 @@ jobject GlyphRasterizer::strokeGlyph(const JavaBridge &bridge, jobject glyph, FT
 }
 
 static jlong create(JNIEnv *env, jobject obj, jlong typefaceHandle, jint pixelWidth, jint pixelHeight,
-    jint transformXX, jint transformXY, jint transformYX, jint transformYY)
+    jint transformXX, jint transformXY, jint transformYX, jint transformYY, jboolean ownFace)
 {
     Typeface *typeface = reinterpret_cast<Typeface *>(typefaceHandle);
     FT_Matrix transform = {
@@ -208,7 +329,7 @@ static jlong create(JNIEnv *env, jobject obj, jlong typefaceHandle, jint pixelWi
         transformYX, transformYY
     };
 
-    GlyphRasterizer *glyphRasterizer = new GlyphRasterizer(*typeface, pixelWidth, pixelHeight, transform);
+    GlyphRasterizer *glyphRasterizer = new GlyphRasterizer(*typeface, pixelWidth, pixelHeight, transform, ownFace);
     return reinterpret_cast<jlong>(glyphRasterizer);
 }
 
@@ -224,6 +345,39 @@ static void loadBitmap(JNIEnv *env, jobject obj, jlong rasterizerHandle, jobject
     glyphRasterizer->loadBitmap(JavaBridge(env), glyph);
 }
 
+static jbyteArray loadBitmaps(JNIEnv *env, jobject obj, jlong rasterizerHandle,
+    jintArray glyphIDs, jint count, jintArray metrics)
+{
+    GlyphRasterizer *glyphRasterizer = reinterpret_cast<GlyphRasterizer *>(rasterizerHandle);
+    jint *glyphIDsBuffer = env->GetIntArrayElements(glyphIDs, nullptr);
+    if (!glyphIDsBuffer) {
+        return nullptr;
+    }
+    jint *metricsBuffer = env->GetIntArrayElements(metrics, nullptr);
+    if (!metricsBuffer) {
+        env->ReleaseIntArrayElements(glyphIDs, glyphIDsBuffer, JNI_ABORT);
+        return nullptr;
+    }
+    std::vector<uint8_t> pixels;
+
+    glyphRasterizer->loadBitmaps(glyphIDsBuffer, static_cast<size_t>(count), metricsBuffer, pixels);
+
+    env->ReleaseIntArrayElements(metrics, metricsBuffer, 0);
+    env->ReleaseIntArrayElements(glyphIDs, glyphIDsBuffer, JNI_ABORT);
+
+    jsize length = static_cast<jsize>(pixels.size());
+    jbyteArray pixelArray = env->NewByteArray(length);
+    if (!pixelArray) {
+        /* Let the pending OutOfMemoryError propagate to the caller. */
+        return nullptr;
+    }
+    if (length > 0) {
+        env->SetByteArrayRegion(pixelArray, 0, length, reinterpret_cast<const jbyte *>(pixels.data()));
+    }
+
+    return pixelArray;
+}
+
 static void loadOutline(JNIEnv *env, jobject obj, jlong rasterizerHandle, jobject glyph)
 {
     GlyphRasterizer *glyphRasterizer = reinterpret_cast<GlyphRasterizer *>(rasterizerHandle);
@@ -250,9 +404,10 @@ static jobject strokeGlyph(JNIEnv *env, jobject obj, jlong rasterizerHandle, job
 }
 
 static JNINativeMethod JNI_METHODS[] = {
-    { "nativeCreate", "(JIIIIII)J", (void *)create },
+    { "nativeCreate", "(JIIIIIIZ)J", (void *)create },
     { "nativeDispose", "(J)V", (void *)dispose },
     { "nativeLoadBitmap", "(JLcom/mta/tehreer/graphics/Glyph;)V", (void *)loadBitmap },
+    { "nativeLoadBitmaps", "(J[II[I)[B", (void *)loadBitmaps },
     { "nativeLoadOutline", "(JLcom/mta/tehreer/graphics/Glyph;)V", (void *)loadOutline },
     { "nativeLoadPath", "(JLcom/mta/tehreer/graphics/Glyph;)V", (void *)loadPath },
     { "nativeStrokeGlyph", "(JLcom/mta/tehreer/graphics/Glyph;IIII)Lcom/mta/tehreer/graphics/Glyph;", (void *)strokeGlyph },
@@ -23,7 +23,10 @@ extern "C" {
 #include FT_TYPES_H
 }
 
+#include <cstdint>
 #include <jni.h>
+#include <mutex>
+#include <vector>
 
 #include "FreeType.h"
 #include "Glyph.h"
@@ -34,12 +37,13 @@ namespace Tehreer {
 
 class GlyphRasterizer {
 public:
-    GlyphRasterizer(Typeface &typeface, FT_F26Dot6 pixelWidth, FT_F26Dot6 pixelHeight, FT_Matrix transform);
+    GlyphRasterizer(Typeface &typeface, FT_F26Dot6 pixelWidth, FT_F26Dot6 pixelHeight, FT_Matrix transform, bool ownFace);
     ~GlyphRasterizer();
 
     Typeface &typeface() { return m_typeface; }
 
     void loadBitmap(const JavaBridge &bridge, jobject glyph);
+    void loadBitmaps(const jint *glyphIDs, size_t count, jint *metrics, std::vector<uint8_t> &pixels);
     void loadOutline(const JavaBridge &bridge, jobject glyph);
     void loadPath(const JavaBridge &bridge, jobject glyph);
 
@@ -48,10 +52,17 @@ public:
 
 private:
     Typeface &m_typeface;
+    std::mutex m_mutex;
+    FT_Face m_ftFace;
+    FT_Stroker m_ftStroker;
     FT_Size m_size;
     FT_Matrix m_transform;
 
-    void unsafeActivate(FT_Face ftFace);
+    void lock();
+    void unlock();
+
+    FT_Face unsafeActivate();
+    FT_Stroker unsafeStroker();
     jobject unsafeCreateBitmap(const JavaBridge &bridge, const FT_Bitmap *bitmap);
 };
 
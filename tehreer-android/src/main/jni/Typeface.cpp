@@ -29,9 +29,15 @@ extern "C" {
 
 #include <android/asset_manager.h>
 #include <android/asset_manager_jni.h>
+#include <cstdint>
 #include <cstdlib>
+#include <cstring>
+#include <fcntl.h>
 #include <jni.h>
 #include <mutex>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
 
 #include "FreeType.h"
 #include "JavaBridge.h"
@@ -191,8 +197,58 @@ static void assetStreamDispose(FT_Stream assetStream)
     free(assetStream);
 }
 
+static const void *mapRegion(int fd, off_t start, size_t length, void **mapping, size_t *mappingLength)
+{
+    /*
+     * NOTE:
+     *      The offset of a mapping must be a multiple of page size, so the region is extended
+     *      backwards to the start of its page.
+     */
+
+    off_t pageSize = static_cast<off_t>(sysconf(_SC_PAGESIZE));
+    off_t pageStart = start - (start % pageSize);
+    size_t pageDelta = static_cast<size_t>(start - pageStart);
+
+    void *address = mmap(nullptr, length + pageDelta, PROT_READ, MAP_PRIVATE, fd, pageStart);
+    if (address == MAP_FAILED) {
+        return nullptr;
+    }
+
+    *mapping = address;
+    *mappingLength = length + pageDelta;
+
+    return static_cast<const uint8_t *>(address) + pageDelta;
+}
+
 Typeface *Typeface::createWithAsset(AAssetManager *assetManager, const char *path)
 {
+    AAsset *asset = AAssetManager_open(assetManager, path, AASSET_MODE_RANDOM);
+    if (!asset) {
+        return nullptr;
+    }
+
+    off_t start = 0;
+    off_t length = 0;
+    int fd = AAsset_openFileDescriptor(asset, &start, &length);
+    AAsset_close(asset);
+
+    /* An uncompressed asset is directly mapped from the apk. */
+    if (fd >= 0) {
+        void *mapping = nullptr;
+        size_t mappingLength = 0;
+        const void *buffer = nullptr;
+
+        if (length > 0) {
+            buffer = mapRegion(fd, start, static_cast<size_t>(length), &mapping, &mappingLength);
+        }
+        close(fd);
+
+        if (buffer) {
+            return createWithMapping(mapping, mappingLength, buffer, static_cast<size_t>(length));
+        }
+    }
+
+    /* A compressed asset cannot be mapped, so it is read through a stream. */
     FT_Stream stream = assetStreamCreate(assetManager, path);
     if (stream) {
         FT_Open_Args args;
@@ -210,6 +266,28 @@ Typeface *Typeface::createWithAsset(AAssetManager *assetManager, const char *pat
 
 Typeface *Typeface::createWithFile(const char *path)
 {
+    int fd = open(path, O_RDONLY);
+    if (fd >= 0) {
+        struct stat status;
+        void *mapping = nullptr;
+        size_t mappingLength = 0;
+        const void *buffer = nullptr;
+        size_t length = 0;
+
+        if (fstat(fd, &status) == 0 && status.st_size > 0) {
+            length = static_cast<size_t>(status.st_size);
+            buffer = mapRegion(fd, 0, length, &mapping, &mappingLength);
+        }
+
+        /* The mapping remains valid after closing the file descriptor. */
+        close(fd);
+
+        if (buffer) {
+            return createWithMapping(mapping, mappingLength, buffer, length);
+        }
+    }
+
+    /* Fall back to reading the file through the stream of FreeType. */
     FT_Open_Args args;
     args.flags = FT_OPEN_PATHNAME;
     args.memory_base = nullptr;
@@ -233,12 +311,57 @@ Typeface *Typeface::createFromStream(const JavaBridge &bridge, jobject stream)
         args.pathname = nullptr;
         args.stream = nullptr;
 
-        return createWithArgs(&args);
+        Typeface *typeface = createWithArgs(&args);
+        if (typeface) {
+            typeface->m_ownsBuffer = true;
+        } else {
+            free(buffer);
+        }
+
+        return typeface;
     }
 
     return nullptr;
 }
 
+Typeface *Typeface::createWithBuffer(const void *buffer, size_t length)
+{
+    /*
+     * NOTE:
+     *      The buffer is owned by the caller, which is responsible to keep it alive as long as the
+     *      typeface is in use.
+     */
+
+    FT_Open_Args args;
+    args.flags = FT_OPEN_MEMORY;
+    args.memory_base = static_cast<const FT_Byte *>(buffer);
+    args.memory_size = static_cast<FT_Long>(length);
+    args.pathname = nullptr;
+    args.stream = nullptr;
+
+    return createWithArgs(&args);
+}
+
+Typeface *Typeface::createWithMapping(void *mapping, size_t mappingLength, const void *buffer, size_t length)
+{
+    FT_Open_Args args;
+    args.flags = FT_OPEN_MEMORY;
+    args.memory_base = static_cast<const FT_Byte *>(buffer);
+    args.memory_size = static_cast<FT_Long>(length);
+    args.pathname = nullptr;
+    args.stream = nullptr;
+
+    Typeface *typeface = createWithArgs(&args);
+    if (typeface) {
+        typeface->m_mapping = mapping;
+        typeface->m_mappingLength = mappingLength;
+    } else {
+        munmap(mapping, mappingLength);
+    }
+
+    return typeface;
+}
+
 Typeface *Typeface::createWithArgs(const FT_Open_Args *args)
 {
     std::mutex &mutex = FreeType::mutex();
@@ -255,10 +378,10 @@ Typeface *Typeface::createWithArgs(const FT_Open_Args *args)
 
     mutex.unlock();
 
-    return (ftFace ? new Typeface((void *)args->memory_base, args->stream, ftFace) : nullptr);
+    return (ftFace ? new Typeface(args, ftFace) : nullptr);
 }
 
-Typeface::Typeface(void *buffer, FT_Stream ftStream, FT_Face ftFace)
+Typeface::Typeface(const FT_Open_Args *args, FT_Face ftFace)
 {
     SFFontProtocol protocol;
     protocol.finalize = nullptr;
@@ -266,8 +389,13 @@ Typeface::Typeface(void *buffer, FT_Stream ftStream, FT_Face ftFace)
     protocol.getGlyphIDForCodepoint = &protocolGetGlyphIDForCodepoint;
     protocol.getAdvanceForGlyph = &protocolGetAdvanceForGlyph;
 
-    m_buffer = buffer;
-    m_ftStream = ftStream;
+    m_buffer = (void *)args->memory_base;
+    m_bufferSize = static_cast<size_t>(args->memory_size);
+    m_ownsBuffer = false;
+    m_mapping = nullptr;
+    m_mappingLength = 0;
+    m_path = (args->pathname ? strdup(args->pathname) : nullptr);
+    m_ftStream = args->stream;
     m_ftFace = ftFace;
     m_ftSize = nullptr;
     m_ftStroker = nullptr;
@@ -305,9 +433,17 @@ Typeface::~Typeface()
         assetStreamDispose(m_ftStream);
     }
 
-    if (m_buffer) {
+    if (m_ownsBuffer) {
         free(m_buffer);
     }
+
+    if (m_mapping) {
+        munmap(m_mapping, m_mappingLength);
+    }
+
+    if (m_path) {
+        free(m_path);
+    }
 }
 
 FT_Stroker Typeface::ftStroker()
@@ -328,6 +464,56 @@ FT_Stroker Typeface::ftStroker()
     return m_ftStroker;
 }
 
+FT_Face Typeface::openFace()
+{
+    /*
+     * NOTE:
+     *      A separate face can only be opened if the font data can be read again independently of
+     *      the base face. An asset stream keeps its own read position, so typefaces created from
+     *      assets always share the base face.
+     */
+
+    FT_Open_Args args;
+    args.memory_base = nullptr;
+    args.memory_size = 0;
+    args.pathname = nullptr;
+    args.stream = nullptr;
+
+    if (m_buffer) {
+        args.flags = FT_OPEN_MEMORY;
+        args.memory_base = static_cast<const FT_Byte *>(m_buffer);
+        args.memory_size = static_cast<FT_Long>(m_bufferSize);
+    } else if (m_path) {
+        args.flags = FT_OPEN_PATHNAME;
+        args.pathname = m_path;
+    } else {
+        return nullptr;
+    }
+
+    std::mutex &mutex = FreeType::mutex();
+    mutex.lock();
+
+    FT_Face ftFace = nullptr;
+    FT_Error error = FT_Open_Face(FreeType::library(), &args, m_ftFace->face_index, &ftFace);
+    if (error != FT_Err_Ok) {
+        ftFace = nullptr;
+    }
+
+    mutex.unlock();
+
+    return ftFace;
+}
+
+void Typeface::closeFace(FT_Face ftFace)
+{
+    std::mutex &mutex = FreeType::mutex();
+    mutex.lock();
+
+    FT_Done_Face(ftFace);
+
+    mutex.unlock();
+}
+
 void Typeface::loadSfntTable(FT_ULong tag, FT_Byte *buffer, FT_ULong *length)
 {
     m_mutex.lock();
@@ -386,11 +572,11 @@ FT_Fixed Typeface::getGlyphAdvance(FT_UInt glyphID, FT_F26Dot6 typeSize, bool ve
     return advance;
 }
 
-jobject Typeface::getGlyphPathNoLock(JavaBridge bridge, FT_UInt glyphID)
+jobject Typeface::getGlyphPathNoLock(JavaBridge bridge, FT_Face ftFace, FT_UInt glyphID)
 {
     jobject glyphPath = nullptr;
 
-    FT_Error error = FT_Load_Glyph(m_ftFace, glyphID, FT_LOAD_NO_BITMAP);
+    FT_Error error = FT_Load_Glyph(ftFace, glyphID, FT_LOAD_NO_BITMAP);
     if (error == FT_Err_Ok) {
         FT_Outline_Funcs funcs;
         funcs.move_to = processMoveTo;
@@ -404,7 +590,7 @@ jobject Typeface::getGlyphPathNoLock(JavaBridge bridge, FT_UInt glyphID)
         pathContext.bridge = &bridge;
         pathContext.path = bridge.Path_construct();
 
-        FT_Outline *outline = &m_ftFace->glyph->outline;
+        FT_Outline *outline = &ftFace->glyph->outline;
         error = FT_Outline_Decompose(outline, &funcs, &pathContext);
         if (error == FT_Err_Ok) {
             glyphPath = pathContext.path;
@@ -424,7 +610,7 @@ jobject Typeface::getGlyphPath(JavaBridge bridge, FT_UInt glyphID, FT_F26Dot6 ty
     FT_Set_Char_Size(m_ftFace, 0, typeSize, 0, 0);
     FT_Set_Transform(m_ftFace, matrix, delta);
 
-    glyphPath = getGlyphPathNoLock(bridge, glyphID);
+    glyphPath = getGlyphPathNoLock(bridge, m_ftFace, glyphID);
 
     m_mutex.unlock();
 
@@ -470,6 +656,19 @@ static jlong createFromStream(JNIEnv *env, jobject obj, jobject stream)
     return 0;
 }
 
+static jlong createWithBuffer(JNIEnv *env, jobject obj, jobject buffer, jint offset, jint length)
+{
+    if (buffer && length > 0) {
+        uint8_t *address = static_cast<uint8_t *>(env->GetDirectBufferAddress(buffer));
+        if (address) {
+            Typeface *typeface = Typeface::createWithBuffer(address + offset, static_cast<size_t>(length));
+            return reinterpret_cast<jlong>(typeface);
+        }
+    }
+
+    return 0;
+}
+
 static void dispose(JNIEnv *env, jobject obj, jlong typefaceHandle)
 {
     Typeface *typeface = reinterpret_cast<Typeface *>(typefaceHandle);
@@ -632,6 +831,7 @@ static JNINativeMethod JNI_METHODS[] = {
     { "nativeCreateWithAsset", "(Landroid/content/res/AssetManager;Ljava/lang/String;)J", (void *)createWithAsset },
     { "nativeCreateWithFile", "(Ljava/lang/String;)J", (void *)createWithFile },
     { "nativeCreateFromStream", "(Ljava/io/InputStream;)J", (void *)createFromStream },
+    { "nativeCreateWithBuffer", "(Ljava/nio/ByteBuffer;II)J", (void *)createWithBuffer },
     { "nativeDispose", "(J)V", (void *)dispose },
     { "nativeGetTableData", "(JI)[B", (void *)getTableData },
     { "nativeGetUnitsPerEm", "(J)I", (void *)getUnitsPerEm },
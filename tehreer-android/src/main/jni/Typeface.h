@@ -40,6 +40,7 @@ public:
     static Typeface *createWithAsset(AAssetManager *assetManager, const char *path);
     static Typeface *createWithFile(const char *path);
     static Typeface *createFromStream(const JavaBridge &bridge, jobject stream);
+    static Typeface *createWithBuffer(const void *buffer, size_t length);
 
     ~Typeface();
 
@@ -49,6 +50,9 @@ public:
     FT_Face ftFace() const { return m_ftFace; }
     FT_Stroker ftStroker();
 
+    FT_Face openFace();
+    void closeFace(FT_Face ftFace);
+
     SFFontRef sfFont() const { return m_sfFont; }
     PatternCache &patternCache() { return m_patternCache; }
 
@@ -58,12 +62,17 @@ public:
     FT_Fixed getGlyphAdvance(FT_UInt glyphID, bool vertical);
     FT_Fixed getGlyphAdvance(FT_UInt glyphID, FT_F26Dot6 typeSize, bool vertical);
 
-    jobject getGlyphPathNoLock(JavaBridge bridge, FT_UInt glyphID);
+    static jobject getGlyphPathNoLock(JavaBridge bridge, FT_Face ftFace, FT_UInt glyphID);
     jobject getGlyphPath(JavaBridge bridge, FT_UInt glyphID, FT_F26Dot6 typeSize, FT_Matrix *matrix, FT_Vector *delta);
 
 private:
     std::mutex m_mutex;
     void *m_buffer;
+    size_t m_bufferSize;
+    bool m_ownsBuffer;
+    void *m_mapping;
+    size_t m_mappingLength;
+    char *m_path;
     FT_Stream m_ftStream;
     FT_Face m_ftFace;
     FT_Size m_ftSize;
@@ -71,9 +80,10 @@ private:
     SFFontRef m_sfFont;
     PatternCache m_patternCache;
 
+    static Typeface *createWithMapping(void *mapping, size_t mappingLength, const void *buffer, size_t length);
     static Typeface *createWithArgs(const FT_Open_Args *args);
 
-    Typeface(void *buffer, FT_Stream ftStream, FT_Face ftFace);
+    Typeface(const FT_Open_Args *args, FT_Face ftFace);
 };
 
 }